@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of serialized sessions sent as one message when a node that's joining the cloud asks for everything. The
+ * format is a count followed by the sessions, each written the same way as in a {@link SessionSnapshot}.
+ */
+public class BulkChunk {
+
+  protected ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+  protected DataOutputStream out = new DataOutputStream(buffer);
+  protected int count = 0;
+
+  public BulkChunk() throws IOException {
+    // Filled in when we're done
+    out.writeInt(0);
+  }
+
+  public void add(SessionSnapshot.Record record) throws IOException {
+    out.writeUTF(record.getId());
+    out.writeUTF(null != record.getContentType() ? record.getContentType() : "");
+    out.writeUTF(null != record.getContentEncoding() ? record.getContentEncoding() : "");
+    out.writeLong(record.getVersion());
+    out.writeInt(record.getBytes().length);
+    out.write(record.getBytes());
+    count++;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * How many bytes this chunk has grown to.
+   *
+   * @return
+   */
+  public int size() {
+    return buffer.size();
+  }
+
+  public byte[] toByteArray() {
+    byte[] bytes = buffer.toByteArray();
+    bytes[0] = (byte) (count >>> 24);
+    bytes[1] = (byte) (count >>> 16);
+    bytes[2] = (byte) (count >>> 8);
+    bytes[3] = (byte) count;
+    return bytes;
+  }
+
+  public static List<SessionSnapshot.Record> read(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int count = in.readInt();
+    List<SessionSnapshot.Record> records = new ArrayList<SessionSnapshot.Record>(count);
+    for (int i = 0; i < count; i++) {
+      String id = in.readUTF();
+      String contentType = in.readUTF();
+      String contentEncoding = in.readUTF();
+      long version = in.readLong();
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      records.add(new SessionSnapshot.Record(id, contentType, ("".equals(contentEncoding) ? null : contentEncoding),
+          version, body));
+    }
+    return records;
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of channels on one connection for publishing. Everything published with the same key (a session id,
+ * usually) goes out on the same channel, so messages about one session stay in order while messages about different
+ * sessions don't have to wait on each other. A channel the broker closed on us is replaced the next time it's asked
+ * for.
+ * <p/>
+ * Each channel is guarded by a <b>ReentrantLock</b> rather than by synchronizing on it, since a virtual thread that
+ * blocks on the network while holding a monitor can't give up the platform thread it's running on.
+ */
+public class ChannelPool {
+
+  protected Logger log = LoggerFactory.getLogger(getClass());
+  protected Connection connection;
+  protected AtomicReferenceArray<Channel> channels;
+  protected ReentrantLock[] locks;
+
+  public ChannelPool(Connection connection, int size) {
+    this.connection = connection;
+    this.channels = new AtomicReferenceArray<Channel>(Math.max(1, size));
+    this.locks = new ReentrantLock[channels.length()];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  public int getSize() {
+    return channels.length();
+  }
+
+  protected int indexOf(String key) {
+    return (null == key ? 0 : (key.hashCode() & 0x7FFFFFFF) % channels.length());
+  }
+
+  /**
+   * Lock the channel that messages with this key are published on and hand it over. Every call has to be paired with
+   * {@link #release(String)} for the same key, in a <code>finally</code>.
+   *
+   * @param key
+   * @return
+   * @throws IOException
+   */
+  public Channel acquire(String key) throws IOException {
+    int i = indexOf(key);
+    locks[i].lock();
+    try {
+      Channel channel = channels.get(i);
+      if (null == channel || !channel.isOpen()) {
+        channel = connection.createChannel();
+        channels.set(i, channel);
+      }
+      return channel;
+    } catch (IOException e) {
+      locks[i].unlock();
+      throw e;
+    } catch (RuntimeException e) {
+      locks[i].unlock();
+      throw e;
+    }
+  }
+
+  public void release(String key) {
+    locks[indexOf(key)].unlock();
+  }
+
+  public void publish(String key, String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws IOException {
+    Channel channel = acquire(key);
+    try {
+      channel.basicPublish(exchange, routingKey, props, body);
+    } finally {
+      release(key);
+    }
+  }
+
+  public void close() {
+    for (int i = 0; i < channels.length(); i++) {
+      locks[i].lock();
+      try {
+        Channel channel = channels.getAndSet(i, null);
+        if (null != channel) {
+          channel.close();
+        }
+      } catch (Throwable t) {
+        log.debug(t.getMessage());
+      } finally {
+        locks[i].unlock();
+      }
+    }
+  }
+
+}
@@ -21,8 +21,15 @@ import org.apache.catalina.session.StandardSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A custom implementation of the Tomcat <b>StandardSession</b> which adds some convenience features like a dirty flag
@@ -38,7 +45,8 @@ public class CloudSession extends StandardSession {
    * Events related to sessions can be of several different types.
    */
   public static enum Events {
-    TOUCH, DESTROY, UPDATE, LOAD, CLEAR, REPLICATE, SETATTR, DELATTR, GETALL
+    TOUCH, DESTROY, UPDATE, LOAD, CLEAR, REPLICATE, SETATTR, DELATTR, GETALL, DELTA, SETATTRS, BULK, CREDIT, DIGEST, REPAIR, OWNED,
+    ACCESS
   }
 
   public static Events asEvent(String s) {
@@ -49,6 +57,33 @@ public class CloudSession extends StandardSession {
    * Is this session a copy of another one somewhere in the cloud?
    */
   private boolean replica = false;
+  /**
+   * Attributes that have been set or removed since this session was last replicated. A value of <code>true</code> means
+   * the attribute was set, <code>false</code> means it was removed.
+   */
+  protected transient Map<String, Boolean> dirtyAttributes = new LinkedHashMap<String, Boolean>();
+  /**
+   * Bumped every time this session's state goes out over the wire so a replica can tell whether a delta was made
+   * against the copy it's holding.
+   */
+  protected transient volatile long version = 0;
+  /**
+   * Fingerprint of the last full copy of this session we sent out, and when we sent it.
+   */
+  protected transient volatile long publishedFingerprint;
+  protected transient volatile long publishedTime = 0;
+  /**
+   * The access time carried by the last message about this session that went out.
+   */
+  protected transient volatile long propagatedAccessTime = 0;
+  /**
+   * Should the end of the request wait for the broker to acknowledge this session's changes? Set on login.
+   */
+  protected transient volatile boolean critical = false;
+  /**
+   * The most recent message about this session that went through the store's confirming publisher.
+   */
+  protected transient volatile ConfirmingPublisher.Publish lastPublish;
 
   public CloudSession(Manager manager) {
     super(manager);
@@ -62,26 +97,227 @@ public class CloudSession extends StandardSession {
     this.replica = replica;
   }
 
+  public long getVersion() {
+    return version;
+  }
+
+  public synchronized void setVersion(long version) {
+    this.version = version;
+  }
+
+  public boolean isCritical() {
+    return critical;
+  }
+
+  public void setCritical(boolean critical) {
+    this.critical = critical;
+  }
+
+  public ConfirmingPublisher.Publish getLastPublish() {
+    return lastPublish;
+  }
+
+  public void setLastPublish(ConfirmingPublisher.Publish lastPublish) {
+    this.lastPublish = lastPublish;
+  }
+
+  /**
+   * Move this session to its next version.
+   *
+   * @return The new version number.
+   */
+  public synchronized long nextVersion() {
+    return ++version;
+  }
+
+  /**
+   * Remember what was in the last full copy of this session that went out.
+   *
+   * @param fingerprint
+   */
+  public synchronized void setPublishedFingerprint(long fingerprint) {
+    this.publishedFingerprint = fingerprint;
+    this.publishedTime = System.currentTimeMillis();
+    this.propagatedAccessTime = thisAccessedTime;
+  }
+
+  /**
+   * Is a full copy of this session with this fingerprint already out there? If <b>timeLimited</b>, it also has to be
+   * recent enough that replicas won't consider the session idle, and halfway through the timeout is the longest we'll
+   * let it go. Otherwise access times are being sent on their own, so the copy is good until it changes.
+   *
+   * @param fingerprint
+   * @param timeLimited
+   * @return
+   */
+  public synchronized boolean isPublished(long fingerprint, boolean timeLimited) {
+    if (publishedTime == 0 || publishedFingerprint != fingerprint) {
+      return false;
+    }
+    if (!timeLimited || maxInactiveInterval < 0) {
+      return true;
+    }
+    return (System.currentTimeMillis() - publishedTime) < (maxInactiveInterval * 500L);
+  }
+
+  /**
+   * Remember that the current access time has gone out with this session's state.
+   */
+  public synchronized void markAccessPropagated() {
+    this.propagatedAccessTime = thisAccessedTime;
+  }
+
+  /**
+   * Has this session been accessed long enough after the last access time that went out that the other nodes should
+   * hear about it? "Long enough" is <b>fraction</b> of the timeout. If so, the current access time is taken as sent.
+   *
+   * @param fraction
+   * @return
+   */
+  public synchronized boolean markAccessPropagated(double fraction) {
+    if (maxInactiveInterval < 0
+        || thisAccessedTime - propagatedAccessTime < (long) (fraction * maxInactiveInterval * 1000L)) {
+      return false;
+    }
+    this.propagatedAccessTime = thisAccessedTime;
+    return true;
+  }
+
+  /**
+   * Hand back the attributes changed since the last call and start tracking from scratch.
+   *
+   * @return Attribute names mapped to <code>true</code> if set or <code>false</code> if removed.
+   */
+  public Map<String, Boolean> takeDirtyAttributes() {
+    synchronized (dirtyAttributes) {
+      Map<String, Boolean> dirty = new LinkedHashMap<String, Boolean>(dirtyAttributes);
+      dirtyAttributes.clear();
+      return dirty;
+    }
+  }
+
+  protected void markDirty(String name, boolean set) {
+    synchronized (dirtyAttributes) {
+      dirtyAttributes.put(name, set);
+    }
+  }
+
+  /**
+   * Anything but an immutable value could be changed in place by the caller without ever calling setAttribute again,
+   * so those get flagged as dirty when read.
+   */
   @Override
-  public void setAttribute(String name, Object value) {
-    boolean needsReplicated = needsReplicated(name, value);
-    super.setAttribute(name, value);
-    if (needsReplicated) {
-      replicateAttribute(name);
+  public Object getAttribute(String name) {
+    Object obj = super.getAttribute(name);
+    if (obj instanceof LazyAttribute) {
+      obj = materialize(name, (LazyAttribute) obj);
+    }
+    if (null != obj && !isImmutable(obj)) {
+      markDirty(name, true);
     }
+    return obj;
   }
 
+  /**
+   * <b>StandardSession</b> routes <code>setAttribute(name, value)</code> through this method, so overriding both sent
+   * every write out twice.
+   */
   @Override
   public void setAttribute(String name, Object value, boolean notify) {
+    // The old value is handed to listeners, so it has to be the real thing
+    materializeAttribute(name);
     boolean needsReplicated = needsReplicated(name, value);
     super.setAttribute(name, value, notify);
+    markDirty(name, null != value);
     if (needsReplicated) {
       replicateAttribute(name);
     }
   }
 
+  /**
+   * Get an attribute without any of the validity checks or dirty tracking of <b>getAttribute</b>.
+   *
+   * @param name
+   * @return
+   */
+  Object getAttributeInternal(String name) {
+    Object obj = attributes.get(name);
+    if (obj instanceof LazyAttribute) {
+      obj = materialize(name, (LazyAttribute) obj);
+    }
+    return obj;
+  }
+
+  /**
+   * Put the real object in place of an attribute that arrived still serialized.
+   *
+   * @param name
+   * @param lazy
+   * @return
+   */
+  protected Object materialize(String name, LazyAttribute lazy) {
+    Object obj = lazy.get();
+    synchronized (lazy) {
+      if (attributes.get(name) == lazy) {
+        if (null != obj) {
+          attributes.put(name, obj);
+        } else {
+          attributes.remove(name);
+        }
+      }
+    }
+    return obj;
+  }
+
+  /**
+   * Deserialize one attribute if it's still waiting to be.
+   *
+   * @param name
+   */
+  void materializeAttribute(String name) {
+    Object obj = attributes.get(name);
+    if (obj instanceof LazyAttribute) {
+      materialize(name, (LazyAttribute) obj);
+    }
+  }
+
+  /**
+   * Deserialize every attribute that's still waiting to be. Anything that's going to be handed to the webapp or written
+   * out with Java serialization needs this first.
+   */
+  void materializeAttributes() {
+    for (Object o : attributes.entrySet().toArray()) {
+      Map.Entry entry = (Map.Entry) o;
+      if (entry.getValue() instanceof LazyAttribute) {
+        materialize((String) entry.getKey(), (LazyAttribute) entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Listeners and unbinding callbacks get every attribute, so none of them can still be serialized.
+   */
+  @Override
+  public void expire(boolean notify) {
+    materializeAttributes();
+    super.expire(notify);
+  }
+
+  @Override
+  public void passivate() {
+    materializeAttributes();
+    super.passivate();
+  }
+
+  @Override
+  public void writeObjectData(ObjectOutputStream stream) throws IOException {
+    materializeAttributes();
+    super.writeObjectData(stream);
+  }
+
   void maybeSetAttributeInternal(String name, Object value) {
-    if (!attributes.containsKey(name) || !attributes.get(name).equals(value)) {
+    Object current = getAttributeInternal(name);
+    if (null == current || !current.equals(value)) {
       attributes.put(name, value);
     }
   }
@@ -95,6 +331,9 @@ public class CloudSession extends StandardSession {
   @Override
   public void setPrincipal(Principal principal) {
     super.setPrincipal(principal);
+    if (null != principal) {
+      critical = true;
+    }
     replicate();
   }
 
@@ -102,15 +341,49 @@ public class CloudSession extends StandardSession {
     super.setPrincipal(principal);
   }
 
-  @Override
-  public void removeAttribute(String name) {
-    super.removeAttribute(name);
-    replicateRemoveAttribute(name);
+  /**
+   * Copy over the timestamps carried in a delta without touching the access count.
+   *
+   * @param thisAccessedTime
+   * @param lastAccessedTime
+   */
+  void setAccessedTimeInternal(long thisAccessedTime, long lastAccessedTime) {
+    this.thisAccessedTime = thisAccessedTime;
+    this.lastAccessedTime = lastAccessedTime;
+  }
+
+  /**
+   * Move this session's access time up to one reported by another node. An older one is ignored, so access events
+   * that arrive out of order can't make a session look more idle than it is.
+   *
+   * @param accessedTime
+   */
+  synchronized void advanceAccessedTime(long accessedTime) {
+    if (accessedTime > thisAccessedTime) {
+      this.lastAccessedTime = thisAccessedTime;
+      this.thisAccessedTime = accessedTime;
+    }
   }
 
+  /**
+   * Record the timestamps a replica needs to keep its expiration in step with ours.
+   *
+   * @param delta
+   */
+  void copyAccessedTimeTo(SessionDelta delta) {
+    delta.setThisAccessedTime(thisAccessedTime);
+    delta.setLastAccessedTime(lastAccessedTime);
+    delta.setMaxInactiveInterval(maxInactiveInterval);
+  }
+
+  /**
+   * As with <b>setAttribute</b>, <code>removeAttribute(name)</code> ends up here.
+   */
   @Override
   public void removeAttribute(String name, boolean notify) {
+    materializeAttribute(name);
     super.removeAttribute(name, notify);
+    markDirty(name, false);
     replicateRemoveAttribute(name);
   }
 
@@ -119,6 +392,28 @@ public class CloudSession extends StandardSession {
     super.setValid(isValid);
   }
 
+  /**
+   * When this session will time out if nobody uses it before then, or <b>Long.MAX_VALUE</b> if it never does.
+   *
+   * @return
+   */
+  long getExpiryTime() {
+    if (maxInactiveInterval < 0) {
+      return Long.MAX_VALUE;
+    }
+    return thisAccessedTime + maxInactiveInterval * 1000L;
+  }
+
+  /**
+   * Has this session gone unused longer than its timeout? Unlike <b>isValid()</b>, this won't expire it.
+   *
+   * @return
+   */
+  boolean isIdle() {
+    return (maxInactiveInterval >= 0
+        && (System.currentTimeMillis() - thisAccessedTime) / 1000L >= maxInactiveInterval);
+  }
+
   @Override
   public boolean isValid() {
     Logger log = LoggerFactory.getLogger(getClass());
@@ -144,6 +439,74 @@ public class CloudSession extends StandardSession {
     return (this.isValid);
   }
 
+  /**
+   * The {@link CompactSessionSerializer} counterpart to <b>writeObjectData</b>.
+   *
+   * @param out
+   * @return How many bytes were written before everything but the access timestamps.
+   * @throws IOException
+   */
+  int writeCompactData(DataOutputStream out) throws IOException {
+    out.writeByte(CompactCodec.FORMAT);
+    CompactCodec.writeVarLong(out, creationTime);
+    CompactCodec.writeVarLong(out, lastAccessedTime);
+    CompactCodec.writeVarLong(out, thisAccessedTime);
+    int stableOffset = out.size();
+    CompactCodec.writeSignedVarLong(out, maxInactiveInterval);
+    out.writeBoolean(isNew);
+    out.writeBoolean(isValid);
+    CompactCodec.writeString(out, id);
+
+    List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>();
+    for (Object o : attributes.entrySet()) {
+      Map.Entry<String, Object> entry = (Map.Entry<String, Object>) o;
+      if (CompactCodec.isWritable(entry.getValue())) {
+        entries.add(entry);
+      }
+    }
+    CompactCodec.writeVarLong(out, entries.size());
+    for (Map.Entry<String, Object> entry : entries) {
+      CompactCodec.writeString(out, entry.getKey());
+      CompactCodec.writeValue(out, entry.getValue());
+    }
+    return stableOffset;
+  }
+
+  /**
+   * The {@link CompactSessionDeserializer} counterpart to <b>readObjectData</b>. Like that method, this sets the
+   * fields directly rather than going through <b>setId</b>, which would add the session to the <b>Manager</b>.
+   *
+   * @param in
+   * @param classLoader
+   * @param lazy        Leave attributes that fell back to Java serialization as bytes until they're asked for.
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  void readCompactData(DataInput in, ClassLoader classLoader, boolean lazy)
+      throws IOException, ClassNotFoundException {
+    byte format = in.readByte();
+    if (format != CompactCodec.FORMAT) {
+      throw new IOException("Unknown compact session format: " + format);
+    }
+    creationTime = CompactCodec.readVarLong(in);
+    lastAccessedTime = CompactCodec.readVarLong(in);
+    thisAccessedTime = CompactCodec.readVarLong(in);
+    maxInactiveInterval = (int) CompactCodec.readSignedVarLong(in);
+    isNew = in.readBoolean();
+    isValid = in.readBoolean();
+    id = CompactCodec.readString(in);
+
+    attributes.clear();
+    long count = CompactCodec.readVarLong(in);
+    for (long i = 0; i < count; i++) {
+      String name = CompactCodec.readString(in);
+      Object value = CompactCodec.readValue(in, classLoader, lazy);
+      if (null != value) {
+        attributes.put(name, value);
+      }
+    }
+  }
+
   @Override
   public String toString() {
     return "CloudSession[" + getIdInternal() + "]";
@@ -158,6 +521,9 @@ public class CloudSession extends StandardSession {
    */
   protected boolean needsReplicated(String name, Object obj) {
     Object orig = attributes.get(name);
+    if (null == obj) {
+      return null != orig;
+    }
     if (null == orig || !obj.equals(orig)) {
       return true;
     } else {
@@ -165,6 +531,25 @@ public class CloudSession extends StandardSession {
     }
   }
 
+  /**
+   * Is this a value that can't be changed out from under us?
+   *
+   * @param obj
+   * @return
+   */
+  protected boolean isImmutable(Object obj) {
+    return (obj instanceof String
+        || obj instanceof Integer
+        || obj instanceof Long
+        || obj instanceof Double
+        || obj instanceof Float
+        || obj instanceof Short
+        || obj instanceof Byte
+        || obj instanceof Boolean
+        || obj instanceof Character
+        || obj instanceof Enum);
+  }
+
   protected void replicate() {
     try {
       getStore().replicateSession(this);
@@ -173,7 +558,21 @@ public class CloudSession extends StandardSession {
     }
   }
 
+  /**
+   * When the store is coalescing writes, the dirty attributes go out together at the end of the request instead. With
+   * delta replication they go out in the valve's delta.
+   *
+   * @return
+   */
+  protected boolean isWriteBuffered() {
+    CloudStore store = getStore();
+    return (null == store || store.isCoalesceAttributeWrites() || store.isDeltaReplication());
+  }
+
   protected void replicateRemoveAttribute(String attr) {
+    if (isWriteBuffered()) {
+      return;
+    }
     try {
       getStore().removeAttribute(this, attr);
     } catch (IOException e) {
@@ -182,6 +581,9 @@ public class CloudSession extends StandardSession {
   }
 
   protected void replicateAttribute(String attr) {
+    if (isWriteBuffered()) {
+      return;
+    }
     try {
       getStore().replicateAttribute(this, attr);
     } catch (IOException e) {
@@ -26,6 +26,11 @@ public class CloudSessionMessage {
   private String source;
   private String id;
   private byte[] body;
+  private String contentType;
+  private String contentEncoding;
+  private long version = -1;
+  private String correlationId;
+  private long expiresAt = 0;
   private boolean forwarded = false;
 
   public String getType() {
@@ -60,6 +65,61 @@ public class CloudSessionMessage {
     this.body = body;
   }
 
+  public String getContentType() {
+    return contentType;
+  }
+
+  public void setContentType(String contentType) {
+    this.contentType = contentType;
+  }
+
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public void setContentEncoding(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /**
+   * Version of the session carried in this message or -1 if the sender didn't include one.
+   *
+   * @return
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  /**
+   * Ties a load request to its reply.
+   *
+   * @return
+   */
+  public String getCorrelationId() {
+    return correlationId;
+  }
+
+  public void setCorrelationId(String correlationId) {
+    this.correlationId = correlationId;
+  }
+
+  /**
+   * When the session in this message will time out if nobody uses it, or 0 if the sender didn't say.
+   *
+   * @return
+   */
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  public void setExpiresAt(long expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+
   public boolean isForwarded() {
     return forwarded;
   }
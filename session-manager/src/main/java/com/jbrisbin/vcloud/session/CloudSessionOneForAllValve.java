@@ -49,7 +49,15 @@ public class CloudSessionOneForAllValve extends ValveBase {
     }
     if ( null != session ) {
       Manager manager = request.getContext().getManager();
-      ((CloudManager) manager).getStore().processDeleteEvent( session.getId() );
+      CloudStore store = ((CloudManager) manager).getStore();
+      if ( store.isCoalesceAttributeWrites() && session instanceof CloudSession ) {
+        store.flushAttributes( (CloudSession) session );
+      }
+      if ( session instanceof CloudSession ) {
+        store.propagateAccess( (CloudSession) session );
+      }
+      store.reclaim( session );
+      store.processDeleteEvent( session.getId() );
     }
 
   }
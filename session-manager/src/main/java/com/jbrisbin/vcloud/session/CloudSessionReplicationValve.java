@@ -5,6 +5,8 @@ import org.apache.catalina.Session;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
@@ -16,6 +18,19 @@ import java.io.IOException;
 public class CloudSessionReplicationValve extends ValveBase {
 
   protected static final String info = "CloudSessionReplicationValve/1.0";
+  protected Logger log = LoggerFactory.getLogger( getClass() );
+  /**
+   * Hold the response until the broker has acknowledged a critical session's changes. Needs the store's confirm mode.
+   */
+  protected boolean waitForConfirms = false;
+
+  public boolean isWaitForConfirms() {
+    return waitForConfirms;
+  }
+
+  public void setWaitForConfirms( boolean waitForConfirms ) {
+    this.waitForConfirms = waitForConfirms;
+  }
 
   @Override
   public String getInfo() {
@@ -35,7 +50,22 @@ public class CloudSessionReplicationValve extends ValveBase {
     }
     if ( null != session ) {
       Manager manager = request.getContext().getManager();
-      ((CloudManager) manager).getStore().replicateSession( session );
+      CloudStore store = ((CloudManager) manager).getStore();
+      if ( store.isDeltaReplication() && session instanceof CloudSession ) {
+        store.replicateDelta( (CloudSession) session );
+      } else {
+        store.replicateSession( session );
+      }
+      if ( waitForConfirms && store.isConfirmPublishes() && session instanceof CloudSession ) {
+        CloudSession cloudSession = (CloudSession) session;
+        if ( cloudSession.isCritical() ) {
+          if ( store.awaitConfirm( cloudSession ) ) {
+            cloudSession.setCritical( false );
+          } else {
+            log.warn( "Broker didn't acknowledge critical session " + session.getId() + " in time." );
+          }
+        }
+      }
     }
   }
 }
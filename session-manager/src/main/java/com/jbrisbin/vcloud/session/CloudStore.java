@@ -20,6 +20,7 @@ import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
+import org.apache.catalina.session.ManagerBase;
 import org.apache.catalina.session.StoreBase;
 import org.apache.tomcat.util.modeler.Registry;
 import org.slf4j.Logger;
@@ -28,14 +29,23 @@ import org.slf4j.MDC;
 
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The workhorse and backbone of the cloud session manager. This <b>Store</b> implementation manages a dynamic list of
@@ -58,6 +68,16 @@ public class CloudStore extends StoreBase {
     ONEFORALL, REPLICATED
   }
 
+  /**
+   * Sessions written by {@link InternalSessionSerializer}. This is what every node has always sent, so anything without
+   * a content type we recognize is treated this way too.
+   */
+  static final String JAVA_SESSION_TYPE = "application/octet-stream";
+  /**
+   * Sessions written by {@link CompactSessionSerializer}.
+   */
+  static final String COMPACT_SESSION_TYPE = "application/x-vcloud-session";
+
   protected Logger log = LoggerFactory.getLogger(getClass());
   protected boolean DEBUG = log.isDebugEnabled();
   /**
@@ -93,11 +113,26 @@ public class CloudStore extends StoreBase {
    */
   protected String mqVirtualHost = "/";
   /**
-   * Number of simultaneous event handlers to create. The workers themselves use a cached thread pool, so this isn't a
-   * direct reflection of the number of extra threads the Store will create. But having a higher number of workers
-   * ensures that heavy message throughput can be adequately handled by the store.
+   * No longer used, since events are handled on <b>eventStripes</b> threads. Still accepted so existing configurations
+   * load.
    */
   protected int maxMqHandlers = 2;
+  /**
+   * Number of single-threaded stripes incoming events are handled on. Events for a given session always go to the same
+   * one.
+   */
+  protected int eventStripes = Runtime.getRuntime().availableProcessors();
+  protected ThreadPoolExecutor[] stripes;
+  protected List<Channel> consumerChannels = new ArrayList<Channel>();
+  /**
+   * Most messages the broker will push on each queue before the ones it sent have been handled. Zero means no limit.
+   */
+  protected int eventPrefetch = 256;
+  /**
+   * Run the store's listeners, workers and stripes on virtual threads, if the JVM has them.
+   */
+  protected boolean virtualThreads = false;
+  protected AtomicLong eventWaitTime = new AtomicLong(0);
   /**
    * Name of the fanout exchange to which events intended for the entire cloud are published.
    */
@@ -142,6 +177,14 @@ public class CloudStore extends StoreBase {
    * The shared channel used by miscellaneous functions in the Store.
    */
   protected Channel mqChannel;
+  /**
+   * Channels that session replication and events are published on, picked by session ID.
+   */
+  protected volatile ChannelPool channelPool;
+  /**
+   * How many channels to publish on. Messages for any one session always use the same channel.
+   */
+  protected int channelPoolSize = 4;
   /**
    * The length of time (in seconds) until a loader is considered dead.
    */
@@ -175,14 +218,6 @@ public class CloudStore extends StoreBase {
    * Keep references to submitted workers in case we need to cancel them all.
    */
   protected List<Future> workers = new ArrayList<Future>();
-  /**
-   * Update and replication events are dispatched to this Queue.
-   */
-  protected LinkedBlockingQueue<CloudSessionMessage> updateEvents = new LinkedBlockingQueue<CloudSessionMessage>();
-  /**
-   * Load requests are dispatched to this Queue.
-   */
-  protected LinkedBlockingQueue<CloudSessionMessage> loadEvents = new LinkedBlockingQueue<CloudSessionMessage>();
   /**
    * Queue for deleteing local sessions.
    */
@@ -190,19 +225,210 @@ public class CloudStore extends StoreBase {
   /**
    * List of what sessions are valid throughout the cloud.
    */
-  protected ConcurrentSkipListSet<String> sessions = new ConcurrentSkipListSet<String>();
+  protected SessionIdIndex sessions = new SessionIdIndex(32);
+  /**
+   * IDs whose session queue is bound to this node's queue, so only this node unbinds them when they're destroyed.
+   */
+  protected SessionIdIndex boundSessions = new SessionIdIndex(32);
   /**
    * Map of the actual session objects.
    */
-  protected ConcurrentSkipListMap<String, CloudSession> localSessions = new ConcurrentSkipListMap<String, CloudSession>();
+  protected ConcurrentHashMap<String, CloudSession> localSessions = new ConcurrentHashMap<String, CloudSession>();
   /**
    * The loaders put themselves in this Map so we can sweep it periodically and keep dead loaders from building up.
    */
-  protected ConcurrentSkipListMap<String, SessionLoader> sessionLoaders = new ConcurrentSkipListMap<String, SessionLoader>();
+  protected ConcurrentHashMap<String, SessionLoader> sessionLoaders = new ConcurrentHashMap<String, SessionLoader>();
+  /**
+   * Loads still waiting on a reply, by the correlation ID their request went out with.
+   */
+  protected ConcurrentHashMap<String, SessionLoader> pendingLoads = new ConcurrentHashMap<String, SessionLoader>();
+  /**
+   * Source of correlation IDs for load requests.
+   */
+  protected AtomicLong loadSequence = new AtomicLong(0);
+  /**
+   * How many requests can wait on a single session load before others are turned away.
+   */
+  protected int maxLoadWaiters = 64;
+  /**
+   * Loads that went out over the network, ones that joined a load already under way, and ones turned away.
+   */
+  protected AtomicLong loadsStarted = new AtomicLong(0);
+  protected AtomicLong loadsCoalesced = new AtomicLong(0);
+  protected AtomicLong loadWaitersRejected = new AtomicLong(0);
+  /**
+   * How many sessions owned by other nodes to keep copies of in ONEFORALL mode. Zero turns the near-cache off. Every
+   * node in the cloud should agree on whether it's on, since owners only announce new versions when it is.
+   */
+  protected int nearCacheSize = 0;
+  protected NearCache nearCache;
+  /**
+   * Should replicas written by the compact codec keep attributes that needed Java serialization as bytes until
+   * something actually reads them?
+   */
+  protected boolean lazyAttributes = false;
+  /**
+   * How many milliseconds each slot of the expiration wheel covers.
+   */
+  protected long expirationTick = 1000;
+  protected ExpirationWheel expirationWheel;
+  /**
+   * How many bytes of memory outside the heap to hold replicas in, in REPLICATED mode. Zero keeps replicas on the heap
+   * the way they've always been.
+   */
+  protected long offHeapReplicaBytes = 0;
+  protected ReplicaArena replicaArena;
+  protected AtomicLong replicasPromoted = new AtomicLong(0);
+  protected AtomicLong sessionsExpired = new AtomicLong(0);
+  /**
+   * Where to write out local sessions that have gone unused for a while, or <code>null</code> to keep them all in
+   * memory.
+   */
+  protected String passivationDirectory = null;
+  /**
+   * How many seconds a local session can go unused before it's written out.
+   */
+  protected int maxIdlePassivate = 300;
+  /**
+   * Size of each passivation log file.
+   */
+  protected int passivationSegmentSize = 64 * 1024 * 1024;
+  protected PassivationLog passivationLog;
+  protected AtomicBoolean compacting = new AtomicBoolean(false);
+  protected AtomicLong sessionsPassivated = new AtomicLong(0);
+  protected AtomicLong sessionsActivated = new AtomicLong(0);
+  /**
+   * Where to write this node's sessions when it stops, and read them back from when it starts, instead of handing them
+   * off to the rest of the cloud. <code>null</code> replicates them on the way down like always.
+   */
+  protected String snapshotFile = null;
+  /**
+   * How many threads serialize and deserialize sessions for the snapshot.
+   */
+  protected int snapshotThreads = Runtime.getRuntime().availableProcessors();
+  protected AtomicLong sessionsSnapshotted = new AtomicLong(0);
+  protected AtomicLong sessionsRestored = new AtomicLong(0);
+  /**
+   * How many sessions to replicate at once when stopping.
+   */
+  protected int drainParallelism = 4;
+  /**
+   * How long (in milliseconds) stopping can spend replicating sessions before it gives up on the rest.
+   */
+  protected long drainTimeout = 30000;
+  protected AtomicLong sessionsDrained = new AtomicLong(0);
+  protected AtomicLong drainFailures = new AtomicLong(0);
+  protected volatile long drainElapsed = 0;
+  /**
+   * Ask every other node for its sessions when this one starts.
+   */
+  protected boolean requestAllOnStart = false;
+  /**
+   * About how many bytes of sessions to send in one message when another node asks for everything.
+   */
+  protected int bulkChunkSize = 256 * 1024;
+  /**
+   * How many chunks another node may send us before waiting for us to install them.
+   */
+  protected int bulkCredits = 4;
+  protected ConcurrentHashMap<String, BulkSender> bulkTransfers = new ConcurrentHashMap<String, BulkSender>();
+  protected AtomicLong bulkSequence = new AtomicLong(0);
+  protected AtomicLong bulkChunksSent = new AtomicLong(0);
+  protected AtomicLong bulkSessionsSent = new AtomicLong(0);
+  protected AtomicLong bulkCreditStalls = new AtomicLong(0);
+  protected AtomicLong bulkChunksReceived = new AtomicLong(0);
+  protected AtomicLong bulkSessionsReceived = new AtomicLong(0);
+  /**
+   * How often (in seconds) nodes compare digests of which sessions they own against which sessions everyone thinks
+   * exist. Zero turns it off.
+   */
+  protected int antiEntropyInterval = 0;
+  /**
+   * How many buckets session IDs are split into for those digests.
+   */
+  protected int antiEntropyBuckets = 1024;
+  protected ScheduledExecutorService antiEntropyTimer;
+  protected ConcurrentHashMap<String, SessionDigest> digests = new ConcurrentHashMap<String, SessionDigest>();
+  protected ConcurrentHashMap<String, Repair> repairs = new ConcurrentHashMap<String, Repair>();
+  /**
+   * How many rounds in a row each bucket hasn't matched.
+   */
+  protected int[] divergence;
+  /**
+   * A mismatch in each bucket that a repair already found nothing wrong with, like two nodes both owning a session.
+   */
+  protected long[] settled;
+  protected AtomicLong antiEntropyRounds = new AtomicLong(0);
+  protected AtomicLong bucketsRepaired = new AtomicLong(0);
+  protected AtomicLong ghostSessionsRemoved = new AtomicLong(0);
+  protected AtomicLong missingSessionsAdded = new AtomicLong(0);
+  /**
+   * How long (in milliseconds) to collect new and destroyed session IDs before sending them out together. Zero sends
+   * each one as it happens.
+   */
+  protected long membershipBatchWindow = 0;
+  /**
+   * The most session IDs to collect before sending them out, however much of the window is left.
+   */
+  protected int membershipBatchSize = 500;
+  protected MembershipPublisher membershipPublisher;
+  protected AtomicLong membershipBatches = new AtomicLong(0);
+  protected AtomicLong membershipChanges = new AtomicLong(0);
   /**
    * The maximum number of times to attempt to load the session.
    */
   protected int maxRetries = 3;
+  /**
+   * Should the replication valve send only the attributes that changed during a request instead of the whole session?
+   */
+  protected boolean deltaReplication = false;
+  /**
+   * Should attribute writes be held until the end of the request and sent together instead of going out one at a time?
+   * Needs one of the valves installed to do the sending.
+   */
+  protected boolean coalesceAttributeWrites = false;
+  /**
+   * How sessions are serialized on the way out, either "java" or "compact". Incoming sessions are read according to
+   * their content type no matter what this is set to, so a cluster can be switched over one node at a time.
+   */
+  protected String sessionCodec = "java";
+  /**
+   * Full session replications that went out and ones skipped because nothing had changed.
+   */
+  protected AtomicLong replicationsPublished = new AtomicLong(0);
+  protected AtomicLong replicationsSuppressed = new AtomicLong(0);
+  /**
+   * Send a session's access time on its own once it's this fraction of the timeout past the last one that went out.
+   * Zero leaves it to the full copies, which are then sent again at least every half timeout whether anything changed
+   * or not.
+   */
+  protected double accessPropagation = 0;
+  protected AtomicLong accessEventsSent = new AtomicLong(0);
+  protected AtomicLong accessEventsThrottled = new AtomicLong(0);
+  protected AtomicLong accessEventsApplied = new AtomicLong(0);
+  /**
+   * Replicate messages thrown away because we already had that version or a newer one.
+   */
+  protected AtomicLong staleDrops = new AtomicLong(0);
+  /**
+   * Session and attribute payloads at least this many bytes long are deflated before they're sent. Zero or less turns
+   * compression off.
+   */
+  protected int compressionThreshold = 0;
+  /**
+   * Should session messages wait in memory until the broker has acknowledged them, so they can be sent again if the
+   * broker or our connection goes away before they're safely stored?
+   */
+  protected boolean confirmPublishes = false;
+  /**
+   * How many unacknowledged messages to hold on to before new ones are turned away.
+   */
+  protected int confirmBufferSize = 10000;
+  /**
+   * How long (in milliseconds) to wait for room in the buffer, and how long the valve waits on a critical session.
+   */
+  protected long confirmTimeout = 5000;
+  protected ConfirmingPublisher confirmingPublisher;
 
   public CloudStore() {
   }
@@ -274,6 +500,56 @@ public class CloudStore extends StoreBase {
     this.maxMqHandlers = maxMqHandlers;
   }
 
+  public int getEventPrefetch() {
+    return eventPrefetch;
+  }
+
+  public void setEventPrefetch(int eventPrefetch) {
+    this.eventPrefetch = eventPrefetch;
+  }
+
+  public int getEventStripes() {
+    return eventStripes;
+  }
+
+  public void setEventStripes(int eventStripes) {
+    this.eventStripes = eventStripes;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Are virtual threads turned on and available?
+   *
+   * @return
+   */
+  public boolean isUsingVirtualThreads() {
+    return virtualThreads && VirtualThreads.isSupported();
+  }
+
+  /**
+   * Total time (in milliseconds) events have spent waiting for their stripe.
+   *
+   * @return
+   */
+  public long getEventWaitTime() {
+    return eventWaitTime.get();
+  }
+
+  public int getChannelPoolSize() {
+    return channelPoolSize;
+  }
+
+  public void setChannelPoolSize(int channelPoolSize) {
+    this.channelPoolSize = channelPoolSize;
+  }
+
   public String getEventsExchange() {
     return eventsExchange;
   }
@@ -347,8 +623,20 @@ public class CloudStore extends StoreBase {
     this.storeId = storeId;
   }
 
+  /**
+   * Events waiting for their stripe, across all of them.
+   *
+   * @return
+   */
   public int getUpdateEventsCount() {
-    return updateEvents.size();
+    int count = 0;
+    ThreadPoolExecutor[] stripes = this.stripes;
+    if (null != stripes) {
+      for (ThreadPoolExecutor stripe : stripes) {
+        count += stripe.getQueue().size();
+      }
+    }
+    return count;
   }
 
   public int getLoadEventsCount() {
@@ -406,755 +694,3116 @@ public class CloudStore extends StoreBase {
     this.maxRetries = maxRetries;
   }
 
-  @Override
-  public String getInfo() {
-    return info;
+  public int getMaxLoadWaiters() {
+    return maxLoadWaiters;
   }
 
-  @Override
-  public String getStoreName() {
-    return name;
+  public void setMaxLoadWaiters(int maxLoadWaiters) {
+    this.maxLoadWaiters = maxLoadWaiters;
   }
 
-  /**
-   * How many sessions are there throughout the cloud?
-   *
-   * @return
-   * @throws IOException
-   */
-  public int getSize() throws IOException {
-    return sessions.size();
+  public long getLoadsStarted() {
+    return loadsStarted.get();
+  }
+
+  public long getLoadsCoalesced() {
+    return loadsCoalesced.get();
+  }
+
+  public long getLoadWaitersRejected() {
+    return loadWaitersRejected.get();
   }
 
   /**
-   * What session IDs exist anywhere in the cloud?
+   * Fraction of remote loads that were answered by a load already under way.
    *
    * @return
-   * @throws IOException
    */
-  public String[] keys() throws IOException {
-    return sessions.toArray(new String[sessions.size()]);
+  public double getLoadCoalescingRate() {
+    long coalesced = loadsCoalesced.get();
+    long total = loadsStarted.get() + coalesced;
+    return (total > 0 ? (double) coalesced / total : 0);
   }
 
-  public boolean isValidSession(String id) {
-    if (sessions.contains(id)) {
-      Session session = localSessions.get(id);
-      if (null != session) {
-        return session.isValid();
-      }
-      return true;
-    }
-    return false;
+  public int getNearCacheSize() {
+    return nearCacheSize;
   }
 
-  public void processExpires() {
-    try {
-      for (String id : keys()) {
-        if (!isValidSession(id)) {
-          if (DEBUG) {
-            log.debug("Session " + id + " has expired.");
-          }
-          remove(id);
-        }
-      }
-    } catch (IOException e) {
-      log.error(e.getMessage(), e);
-    }
+  public void setNearCacheSize(int nearCacheSize) {
+    this.nearCacheSize = nearCacheSize;
   }
 
-  /**
-   * Try to load the given session ID using a loader object that works in a separate thread.
-   *
-   * @param id
-   * @return The Session object or null if this loader times out.
-   * @throws ClassNotFoundException
-   * @throws IOException
-   */
-  public Session load(String id) throws ClassNotFoundException, IOException {
-    // Check locally first
-    CloudSession session = localSessions.get(id);
-    if (null != session) {
-      if (DEBUG) {
-        log.debug("Found a local session for: " + id);
-      }
-      return session;
-    }
+  public long getNearCacheHits() {
+    return (null != nearCache ? nearCache.getHits() : 0);
+  }
 
-    // Load from the cloud
-    SessionLoader loader;
-    if (sessions.contains(id)) {
-      if (DEBUG) {
-        log.debug("Loading session from the cloud: " + id);
-      }
-      Future f = null;
-      for (int i = 0; i < maxRetries; i++) {
-        if (DEBUG && i > 0) {
-          log.debug("********* Load attempt: " + (i + 1));
-        }
-        if (null == (loader = sessionLoaders.get(id))) {
-          loader = new SessionLoader(id);
-          sessionLoaders.put(id, loader);
-          f = workerPool.submit(loader);
-        }
-        session = loader.getSession();
-        if (null == session) {
-          if (DEBUG) {
-            log.debug(" ***** SESSION LOADER TIMEOUT! *****");
-            log.debug("Loader: " + loader.toString());
-            log.debug("Cloud: " + sessions.toString());
-            log.debug("Local: " + localSessions.toString());
-          }
-        } else {
-          if (DEBUG) {
-            double runtime = ((System.currentTimeMillis() - loader.getStartTime()) * .001);
-            log.debug("Loader runtime: " + new DecimalFormat("#.###s").format(runtime));
-          }
-          break;
-        }
-      }
-      if (null != f) {
-        sessionLoaders.remove(id);
-        if (!f.isDone()) {
-          f.cancel(true);
-        }
-      }
-    }
+  public long getNearCacheMisses() {
+    return (null != nearCache ? nearCache.getMisses() : 0);
+  }
 
-    return session;
+  public long getNearCacheInvalidations() {
+    return (null != nearCache ? nearCache.getInvalidations() : 0);
   }
 
-  /**
-   * Remove this session ID from the cloud by sending out a "destroy" message, which causes every node to delete this
-   * session ID from its membership.
-   *
-   * @param id
-   * @throws IOException
-   */
+  public boolean isLazyAttributes() {
+    return lazyAttributes;
+  }
 
-  public void remove(String id) throws IOException {
-    sessions.remove(id);
-    localSessions.remove(id);
-    sendEvent("destroy", id.getBytes());
+  public void setLazyAttributes(boolean lazyAttributes) {
+    this.lazyAttributes = lazyAttributes;
+  }
+
+  public long getExpirationTick() {
+    return expirationTick;
+  }
+
+  public void setExpirationTick(long expirationTick) {
+    this.expirationTick = expirationTick;
   }
 
   /**
-   * This wipes out everything. Creates a complete blank slate everywhere in the cloud.
+   * How many entries are waiting in the expiration wheel.
    *
-   * @throws IOException
+   * @return
    */
-  public void clear() throws IOException {
-    sendEvent("clear", new byte[0]);
+  public int getExpirationsScheduled() {
+    return (null != expirationWheel ? expirationWheel.size() : 0);
   }
 
-  /**
-   * Only clear local sessions. This method is likely only useful to JMX clients.
-   */
-  public void clearLocalSessions() {
-    localSessions.clear();
+  public long getSessionsExpired() {
+    return sessionsExpired.get();
   }
 
-  /**
-   * @param session
-   * @throws IOException
-   */
-  public void save(Session session) throws IOException {
-    String id = session.getId();
-    if (sessions.add(id)) {
-      // This is a new session.
-      String qname = String.format(sessionEventsQueuePattern, id);
-      Channel channel = getMqChannel();
-      synchronized (channel) {
-        channel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
-      }
-      sendEvent("touch", id.getBytes());
-      replicateSession(session);
-    }
-    localSessions.put(id, (CloudSession) session);
+  public long getOffHeapReplicaBytes() {
+    return offHeapReplicaBytes;
   }
 
-  public void processDeleteEvent(String sessionId) {
-    if (deleteEvents.remove(sessionId)) {
-      localSessions.remove(sessionId);
-    }
+  public void setOffHeapReplicaBytes(long offHeapReplicaBytes) {
+    this.offHeapReplicaBytes = offHeapReplicaBytes;
   }
 
-  /**
-   * Basically an "update" event.
+  public int getOffHeapReplicas() {
+    return (null != replicaArena ? replicaArena.size() : 0);
+  }
+
+  public long getReplicaArenaReservedBytes() {
+    return (null != replicaArena ? replicaArena.getReservedBytes() : 0);
+  }
+
+  public long getReplicaArenaStoredBytes() {
+    return (null != replicaArena ? replicaArena.getStoredBytes() : 0);
+  }
+
+  public double getReplicaArenaFragmentation() {
+    return (null != replicaArena ? replicaArena.getFragmentation() : 0);
+  }
+
+  public long getReplicaArenaRejected() {
+    return (null != replicaArena ? replicaArena.getRejected() : 0);
+  }
+
+  /**
+   * Replicas turned into live sessions because this node was asked for them.
    *
-   * @param session
-   * @throws IOException
+   * @return
    */
-  public void replicateSession(Session session) throws IOException {
-    AMQP.BasicProperties props = new AMQP.BasicProperties();
-    props.setContentType("application/octet-stream");
-    props.setReplyTo(sourceEventsQueue);
-    props.setType("replicate");
-    Map<String, Object> headers = new LinkedHashMap<String, Object>();
-    headers.put("id", session.getId());
+  public long getReplicasPromoted() {
+    return replicasPromoted.get();
+  }
 
-    SessionSerializer serializer = new InternalSessionSerializer();
-    serializer.setSession(session);
-    byte[] bytes = serializer.serialize();
+  public String getPassivationDirectory() {
+    return passivationDirectory;
+  }
 
-    Channel channel = getMqChannel();
-    synchronized (channel) {
-      channel.basicPublish(replicationEventsExchange, replicationEventsRoutingKey, props, bytes);
-      channel.basicPublish(sessionEventsExchange,
-          String.format(sessionEventsQueuePattern, session.getId()),
-          props,
-          bytes);
-    }
+  public void setPassivationDirectory(String passivationDirectory) {
+    this.passivationDirectory = passivationDirectory;
   }
 
-  public void replicateAttribute(CloudSession session, String attr) throws IOException {
-    AMQP.BasicProperties props = new AMQP.BasicProperties();
-    props.setContentType("application/octet-stream");
-    props.setReplyTo(sourceEventsQueue);
-    props.setType("setattr");
-    Map<String, Object> headers = new LinkedHashMap<String, Object>();
-    headers.put("id", session.getId());
-    headers.put("attribute", attr);
-    props.setHeaders(headers);
+  public int getMaxIdlePassivate() {
+    return maxIdlePassivate;
+  }
 
-    AttributeSerializer ser = new InternalAttributeSerializer();
-    ser.setObject(session.getAttribute(attr));
-    byte[] bytes = ser.serialize();
+  public void setMaxIdlePassivate(int maxIdlePassivate) {
+    this.maxIdlePassivate = maxIdlePassivate;
+  }
 
-    Channel channel = getMqChannel();
-    synchronized (channel) {
-      channel.basicPublish(replicationEventsExchange, replicationEventsRoutingKey, props, bytes);
-      channel.basicPublish(sessionEventsExchange, String.format(sessionEventsQueuePattern, session.getId()), props,
-          bytes);
-    }
+  public int getPassivationSegmentSize() {
+    return passivationSegmentSize;
   }
 
-  public void removeAttribute(CloudSession session, String attr) throws IOException {
-    AMQP.BasicProperties props = new AMQP.BasicProperties();
-    props.setContentType("application/octet-stream");
-    props.setReplyTo(sourceEventsQueue);
-    props.setType("delattr");
-    Map<String, Object> headers = new LinkedHashMap<String, Object>();
-    headers.put("id", session.getId());
-    props.setHeaders(headers);
+  public void setPassivationSegmentSize(int passivationSegmentSize) {
+    this.passivationSegmentSize = passivationSegmentSize;
+  }
 
-    Channel channel = getMqChannel();
-    synchronized (channel) {
-      channel.basicPublish(replicationEventsExchange, replicationEventsRoutingKey, props, attr.getBytes());
-      channel.basicPublish(sessionEventsExchange, String.format(sessionEventsQueuePattern, session.getId()), props,
-          attr.getBytes());
-    }
+  public int getPassivatedSessions() {
+    return (null != passivationLog ? passivationLog.size() : 0);
   }
 
-  @Override
-  public void start() throws LifecycleException {
-    setState("starting");
-    MDC.put("method", "start()");
-    super.start();
-    if (DEBUG) {
-      log.debug("Starting CloudStore: " + storeId);
-    }
+  public long getSessionsPassivated() {
+    return sessionsPassivated.get();
+  }
 
-    try {
-      mqChannel = getMqChannel();
+  public long getSessionsActivated() {
+    return sessionsActivated.get();
+  }
 
-      synchronized (mqChannel) {
-        // Messages bound for all nodes in cluster go here
-        mqChannel.exchangeDeclare(eventsExchange, "fanout", true);
-        mqChannel.queueDeclare(eventsQueue, true, false, false, null);
-        mqChannel.queueBind(eventsQueue, eventsExchange, "");
+  public long getPassivationLogBytes() {
+    return (null != passivationLog ? passivationLog.getMappedBytes() : 0);
+  }
 
-        // Messages bound for just this node go here
-        mqChannel.queueDeclare(sourceEventsQueue, true, false, false, null);
+  public long getPassivationLiveBytes() {
+    return (null != passivationLog ? passivationLog.getLiveBytes() : 0);
+  }
 
-        // Session events
-        mqChannel.exchangeDeclare(sessionEventsExchange, "topic", true);
+  public long getPassivationCompactions() {
+    return (null != passivationLog ? passivationLog.getCompactions() : 0);
+  }
 
-        // Replication events
-        if (null != replicationEventsExchange && !replicationEventsExchange.trim().equals("")) {
-          mqChannel.exchangeDeclare(replicationEventsExchange, "topic", true);
-          mqChannel.queueDeclare(replicationEventsQueue, true, false, false, null);
-          mqChannel.queueBind(replicationEventsQueue, replicationEventsExchange, replicationEventsRoutingKey);
-        }
-      }
+  public String getSnapshotFile() {
+    return snapshotFile;
+  }
 
-      startWorkers();
+  public void setSnapshotFile(String snapshotFile) {
+    this.snapshotFile = snapshotFile;
+  }
 
-    } catch (IOException e) {
-      log.error(e.getMessage(), e);
-    }
+  public int getSnapshotThreads() {
+    return snapshotThreads;
+  }
 
-    try {
-      objectName = new ObjectName("vCloud:type=SessionStore,id=" + storeId);
-      Registry.getRegistry(null, null).registerComponent(this, objectName, null);
-    } catch (MalformedObjectNameException e) {
-      log.error(e.getMessage(), e);
-    } catch (Exception e) {
-      log.error(e.getMessage(), e);
-    }
-    MDC.remove("method");
-    setState("started");
+  public void setSnapshotThreads(int snapshotThreads) {
+    this.snapshotThreads = snapshotThreads;
   }
 
-  @Override
-  public void stop() throws LifecycleException {
-    setState("stopping");
-    MDC.put("method", "stop()");
-    try {
-      // Make sure local sessions are replicated off this server
-      for (Session session : localSessions.values()) {
-        replicateSession(session);
-        localSessions.remove(session.getId());
-      }
+  public long getSessionsSnapshotted() {
+    return sessionsSnapshotted.get();
+  }
 
-      // Wait until all sessions are replicated
-      while (localSessions.size() > 0) {
-        try {
-          Thread.sleep(300);
-        } catch (InterruptedException e) {
-          log.error(e.getMessage(), e);
-        }
-      }
+  public long getSessionsRestored() {
+    return sessionsRestored.get();
+  }
 
-      synchronized (this) {
-        if (deleteQueuesOnStop) {
-          getMqChannel();
-          mqChannel.queueDelete(eventsQueue);
-          mqChannel.queueDelete(sourceEventsQueue);
-          mqChannel.queueDelete(replicationEventsQueue);
-        }
-        mqChannel.close();
-        mqConnection.close();
-      }
-    } catch (IOException e) {
-      log.error(e.getMessage(), e);
-    }
+  public int getDrainParallelism() {
+    return drainParallelism;
+  }
 
-    // Remove ourself from JMX
-    Registry.getRegistry(null, null).unregisterComponent(objectName);
+  public void setDrainParallelism(int drainParallelism) {
+    this.drainParallelism = drainParallelism;
+  }
 
-    // Stop worker threads
-    stopWorkers();
-    MDC.remove("method");
-    setState("stopped");
+  public long getDrainTimeout() {
+    return drainTimeout;
   }
 
-  protected void stopWorkers() {
-    for (Future f : workers) {
-      f.cancel(true);
-    }
-    try {
-      listenerPool.shutdownNow();
-    } catch (Throwable t) {
-      // IGNORED
-    }
-    try {
-      workerPool.shutdownNow();
-    } catch (Throwable t) {
-      // IGNORED
-    }
-    workers.clear();
+  public void setDrainTimeout(long drainTimeout) {
+    this.drainTimeout = drainTimeout;
   }
 
-  protected void startWorkers() throws IOException {
-    for (int i = 0; i < maxMqHandlers; i++) {
-      workers.add(workerPool.submit(new EventListener(eventsQueue)));
-      workers.add(workerPool.submit(new EventListener(sourceEventsQueue)));
-      workers.add(workerPool.submit(new EventListener(replicationEventsQueue)));
-      workers.add(workerPool.submit(new UpdateEventHandler()));
-      workers.add(workerPool.submit(new LoadEventHandler()));
-    }
+  public long getSessionsDrained() {
+    return sessionsDrained.get();
   }
 
-  protected void restartListeners() throws IOException {
-    Channel channel = getMqChannel();
-    synchronized (channel) {
-      for (String id : localSessions.keySet()) {
-        String qname = String.format(sessionEventsQueuePattern, id);
-        channel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
-      }
-    }
+  /**
+   * Sessions that failed to replicate, or weren't gotten to in time, the last time this store stopped.
+   *
+   * @return
+   */
+  public long getDrainFailures() {
+    return drainFailures.get();
   }
 
   /**
-   * Send a lightweight message "event" to everyone. Used for simple events like "touch", "clear", and "destroy"
+   * How long (in milliseconds) the last drain took.
    *
-   * @param type
-   * @param body
-   * @throws IOException
+   * @return
    */
-  protected void sendEvent(String type, byte[] body) throws IOException {
-    AMQP.BasicProperties props = new AMQP.BasicProperties();
-    props.setContentType("text/plain");
-    props.setReplyTo(sourceEventsQueue);
-    props.setType(type);
-    synchronized (mqChannel) {
-      mqChannel.basicPublish(eventsExchange, "", props, body);
-    }
+  public long getDrainElapsed() {
+    return drainElapsed;
   }
 
-  protected void sendEventTo(String event, String source, byte[] body) throws IOException {
-    AMQP.BasicProperties props = new AMQP.BasicProperties();
-    props.setContentType("text/plain");
-    props.setReplyTo(sourceEventsQueue);
-    props.setType(event);
-    synchronized (mqChannel) {
-      mqChannel.basicPublish("", source, props, body);
-    }
+  public boolean isRequestAllOnStart() {
+    return requestAllOnStart;
   }
 
-  protected synchronized Connection getMqConnection() throws IOException {
-    if (null == mqConnection) {
-      ConnectionFactory factory = new ConnectionFactory();
-      factory.setHost(mqHost);
-      factory.setPort(mqPort);
-      factory.setUsername(mqUser);
-      factory.setPassword(mqPassword);
-      factory.setVirtualHost(mqVirtualHost);
-      factory.setRequestedHeartbeat(10);
-      mqConnection = factory.newConnection();
-    }
-    return mqConnection;
+  public void setRequestAllOnStart(boolean requestAllOnStart) {
+    this.requestAllOnStart = requestAllOnStart;
   }
 
-  protected synchronized Channel getMqChannel() throws IOException {
-    if (null == mqChannel) {
-      if (DEBUG) {
-        log.debug("Creating a new RabbitMQ channel...");
-      }
-      mqChannel = getMqConnection().createChannel();
-    }
-    return mqChannel;
+  public int getBulkChunkSize() {
+    return bulkChunkSize;
   }
 
-  protected AttributeDeserializer getAttributeDeserializer(byte[] bytes) {
-    AttributeDeserializer deserializer = new InternalAttributeDeserializer();
-    deserializer.setBytes(bytes);
-    Container container = manager.getContainer();
-    Loader loader;
-    ClassLoader classLoader;
-    if (null != container) {
-      loader = container.getLoader();
-      if (null != loader) {
-        classLoader = loader.getClassLoader();
-        deserializer.setClassLoader(classLoader);
+  public void setBulkChunkSize(int bulkChunkSize) {
+    this.bulkChunkSize = bulkChunkSize;
+  }
+
+  public int getBulkCredits() {
+    return bulkCredits;
+  }
+
+  public void setBulkCredits(int bulkCredits) {
+    this.bulkCredits = bulkCredits;
+  }
+
+  public long getBulkChunksSent() {
+    return bulkChunksSent.get();
+  }
+
+  public long getBulkSessionsSent() {
+    return bulkSessionsSent.get();
+  }
+
+  /**
+   * Times a bulk transfer to another node had to wait for that node to catch up.
+   *
+   * @return
+   */
+  public long getBulkCreditStalls() {
+    return bulkCreditStalls.get();
+  }
+
+  public long getBulkChunksReceived() {
+    return bulkChunksReceived.get();
+  }
+
+  public long getBulkSessionsReceived() {
+    return bulkSessionsReceived.get();
+  }
+
+  public int getBulkTransfersActive() {
+    return bulkTransfers.size();
+  }
+
+  public int getAntiEntropyInterval() {
+    return antiEntropyInterval;
+  }
+
+  public void setAntiEntropyInterval(int antiEntropyInterval) {
+    this.antiEntropyInterval = antiEntropyInterval;
+  }
+
+  public int getAntiEntropyBuckets() {
+    return antiEntropyBuckets;
+  }
+
+  public void setAntiEntropyBuckets(int antiEntropyBuckets) {
+    this.antiEntropyBuckets = antiEntropyBuckets;
+  }
+
+  public long getAntiEntropyRounds() {
+    return antiEntropyRounds.get();
+  }
+
+  public long getBucketsRepaired() {
+    return bucketsRepaired.get();
+  }
+
+  /**
+   * Session IDs dropped because no node owned them.
+   *
+   * @return
+   */
+  public long getGhostSessionsRemoved() {
+    return ghostSessionsRemoved.get();
+  }
+
+  /**
+   * Session IDs added because a node owned them and we didn't know.
+   *
+   * @return
+   */
+  public long getMissingSessionsAdded() {
+    return missingSessionsAdded.get();
+  }
+
+  public long getMembershipBatchWindow() {
+    return membershipBatchWindow;
+  }
+
+  public void setMembershipBatchWindow(long membershipBatchWindow) {
+    this.membershipBatchWindow = membershipBatchWindow;
+  }
+
+  public int getMembershipBatchSize() {
+    return membershipBatchSize;
+  }
+
+  public void setMembershipBatchSize(int membershipBatchSize) {
+    this.membershipBatchSize = membershipBatchSize;
+  }
+
+  public long getMembershipBatches() {
+    return membershipBatches.get();
+  }
+
+  public long getMembershipChanges() {
+    return membershipChanges.get();
+  }
+
+  /**
+   * Average number of session IDs sent per batch.
+   *
+   * @return
+   */
+  public double getMembershipBatchFill() {
+    long batches = membershipBatches.get();
+    return (batches > 0 ? membershipChanges.get() / (double) batches : 0);
+  }
+
+  protected boolean isSnapshotEnabled() {
+    return (null != snapshotFile && !snapshotFile.trim().equals(""));
+  }
+
+  public boolean isDeltaReplication() {
+    return deltaReplication;
+  }
+
+  public void setDeltaReplication(boolean deltaReplication) {
+    this.deltaReplication = deltaReplication;
+  }
+
+  public boolean isCoalesceAttributeWrites() {
+    return coalesceAttributeWrites;
+  }
+
+  public void setCoalesceAttributeWrites(boolean coalesceAttributeWrites) {
+    this.coalesceAttributeWrites = coalesceAttributeWrites;
+  }
+
+  public long getReplicationsPublished() {
+    return replicationsPublished.get();
+  }
+
+  public long getReplicationsSuppressed() {
+    return replicationsSuppressed.get();
+  }
+
+  public long getStaleDrops() {
+    return staleDrops.get();
+  }
+
+  public double getAccessPropagation() {
+    return accessPropagation;
+  }
+
+  public void setAccessPropagation(double accessPropagation) {
+    this.accessPropagation = accessPropagation;
+  }
+
+  public long getAccessEventsSent() {
+    return accessEventsSent.get();
+  }
+
+  /**
+   * Accesses that weren't sent because one had gone out recently enough.
+   *
+   * @return
+   */
+  public long getAccessEventsThrottled() {
+    return accessEventsThrottled.get();
+  }
+
+  public long getAccessEventsApplied() {
+    return accessEventsApplied.get();
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public boolean isConfirmPublishes() {
+    return confirmPublishes;
+  }
+
+  public void setConfirmPublishes(boolean confirmPublishes) {
+    this.confirmPublishes = confirmPublishes;
+  }
+
+  public int getConfirmBufferSize() {
+    return confirmBufferSize;
+  }
+
+  public void setConfirmBufferSize(int confirmBufferSize) {
+    this.confirmBufferSize = confirmBufferSize;
+  }
+
+  public long getConfirmTimeout() {
+    return confirmTimeout;
+  }
+
+  public void setConfirmTimeout(long confirmTimeout) {
+    this.confirmTimeout = confirmTimeout;
+  }
+
+  public int getConfirmsInFlight() {
+    return (null != confirmingPublisher ? confirmingPublisher.getInFlight() : 0);
+  }
+
+  public long getConfirmsAcknowledged() {
+    return (null != confirmingPublisher ? confirmingPublisher.getConfirmed() : 0);
+  }
+
+  public long getConfirmsFailed() {
+    return (null != confirmingPublisher ? confirmingPublisher.getFailed() : 0);
+  }
+
+  /**
+   * Average time (in milliseconds) it's taken the broker to acknowledge a session message.
+   *
+   * @return
+   */
+  public long getConfirmLatency() {
+    return (null != confirmingPublisher ? confirmingPublisher.getAverageConfirmLatency() : 0);
+  }
+
+  public String getSessionCodec() {
+    return sessionCodec;
+  }
+
+  public void setSessionCodec(String sessionCodec) {
+    if (!"java".equalsIgnoreCase(sessionCodec) && !"compact".equalsIgnoreCase(sessionCodec)) {
+      throw new IllegalArgumentException("Unknown session codec: " + sessionCodec);
+    }
+    this.sessionCodec = sessionCodec.toLowerCase();
+  }
+
+  @Override
+  public String getInfo() {
+    return info;
+  }
+
+  @Override
+  public String getStoreName() {
+    return name;
+  }
+
+  /**
+   * How many sessions are there throughout the cloud?
+   *
+   * @return
+   * @throws IOException
+   */
+  public int getSize() throws IOException {
+    return sessions.size();
+  }
+
+  /**
+   * What session IDs exist anywhere in the cloud?
+   *
+   * @return
+   * @throws IOException
+   */
+  public String[] keys() throws IOException {
+    return sessions.toArray();
+  }
+
+  public boolean isValidSession(String id) {
+    if (sessions.contains(id)) {
+      Session session = localSessions.get(id);
+      if (null != session) {
+        return session.isValid();
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Look at only those local sessions the expiration wheel says are due. A session that's been used since it was
+   * scheduled goes back in the wheel. Only the node a session lives on sends out the "destroy"; a replica that times
+   * out is just dropped, since its owner will be doing the same.
+   */
+  public void processExpires() {
+    if (null == expirationWheel) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (String id : expirationWheel.advance(now)) {
+      CloudSession session = localSessions.get(id);
+      if (null == session) {
+        if (null != passivationLog && passivationLog.contains(id)) {
+          expirePassivated(id, now);
+          continue;
+        }
+        if (null != replicaArena && replicaArena.contains(id)) {
+          long expiresAt = replicaArena.getExpiresAt(id);
+          if (expiresAt <= now) {
+            replicaArena.discard(id);
+          } else {
+            expirationWheel.schedule(id, (expiresAt == Long.MAX_VALUE ? now + expirationTick * 60 : expiresAt));
+          }
+        }
+        // Otherwise it's already gone
+        continue;
+      }
+      if (session.isIdle()) {
+        if (session.isReplica()) {
+          if (DEBUG) {
+            log.debug("Replica " + id + " has expired.");
+          }
+          localSessions.remove(id, session);
+          continue;
+        }
+        if (!session.isValid()) {
+          if (DEBUG) {
+            log.debug("Session " + id + " has expired.");
+          }
+          sessionsExpired.incrementAndGet();
+          if (sessions.contains(id)) {
+            try {
+              remove(id);
+            } catch (IOException e) {
+              log.error(e.getMessage(), e);
+            }
+          }
+          continue;
+        }
+      }
+      if (null != passivationLog && !session.isReplica()
+          && now - session.getThisAccessedTimeInternal() >= maxIdlePassivate * 1000L) {
+        passivate(session);
+        continue;
+      }
+      scheduleExpiration(session);
+    }
+
+    if (null != passivationLog && compacting.compareAndSet(false, true)) {
+      workerPool.submit(new Runnable() {
+        public void run() {
+          try {
+            passivationLog.compact(0.5);
+          } catch (IOException e) {
+            log.error(e.getMessage(), e);
+          } finally {
+            compacting.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Write a local session that's gone unused for a while out to the passivation log and let go of it.
+   *
+   * @param session
+   */
+  protected void passivate(CloudSession session) {
+    String id = session.getIdInternal();
+    try {
+      synchronized (session) {
+        long accessed = session.getThisAccessedTimeInternal();
+        SessionSerializer serializer = getSessionSerializer(session);
+        serializer.setSession(session);
+        AMQP.BasicProperties props = new AMQP.BasicProperties();
+        byte[] bytes = encodePayload(props, serializer.serialize());
+        if (!passivationLog.append(id, session.getVersion(), getSessionContentType(session),
+            props.getContentEncoding(), session.getExpiryTime(), bytes)) {
+          log.warn("Session " + id + " is too big to passivate.");
+          scheduleExpiration(session);
+          return;
+        }
+        if (session.getThisAccessedTimeInternal() != accessed || !localSessions.remove(id, session)) {
+          // Somebody got to it while we were writing it out
+          passivationLog.discard(id);
+          scheduleExpiration(session);
+          return;
+        }
+        if (session.getThisAccessedTimeInternal() != accessed) {
+          // Used again just as it was taken out, so it has to go back
+          passivationLog.discard(id);
+          if (null == localSessions.putIfAbsent(id, session)) {
+            scheduleExpiration(session);
+          }
+          return;
+        }
+      }
+      sessionsPassivated.incrementAndGet();
+      if (DEBUG) {
+        log.debug("Passivated session " + id);
+      }
+      expirationWheel.schedule(id, passivationExpiry(id, System.currentTimeMillis()));
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      scheduleExpiration(session);
+    }
+  }
+
+  /**
+   * Bring a passivated session back into memory.
+   *
+   * @param id
+   * @return The session or <code>null</code> if it isn't passivated.
+   */
+  protected CloudSession activate(String id) {
+    PassivationLog.Entry entry = passivationLog.take(id);
+    if (null == entry) {
+      // Another thread may have just activated it
+      return localSessions.get(id);
+    }
+    CloudSession session = (CloudSession) manager.createEmptySession();
+    try {
+      byte[] bytes = decodePayload(entry.getContentEncoding(), entry.getBytes());
+      getSessionDeserializer(session, entry.getContentType(), bytes).deserialize();
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      return null;
+    }
+    session.setVersion(entry.getVersion());
+    session.advanceAccessedTime(entry.getAccessedAt());
+    if (DEBUG) {
+      log.debug("Activating passivated session " + id);
+    }
+    sessionsActivated.incrementAndGet();
+    CloudSession existing = localSessions.putIfAbsent(id, session);
+    if (null != existing) {
+      return existing;
+    }
+    scheduleExpiration(session);
+    return session;
+  }
+
+  /**
+   * A session that was written out while a request still had hold of it has to come back into memory when that
+   * request is done with it, or the changes it made would be lost the next time it's activated.
+   *
+   * @param session
+   */
+  public void reclaim(Session session) {
+    if (null != passivationLog && session instanceof CloudSession && passivationLog.discard(session.getId())) {
+      if (null == localSessions.putIfAbsent(session.getId(), (CloudSession) session)) {
+        scheduleExpiration((CloudSession) session);
+      }
+    }
+  }
+
+  /**
+   * Drop a passivated session that has timed out, or look at it again when it's due.
+   *
+   * @param id
+   * @param now
+   */
+  protected void expirePassivated(String id, long now) {
+    long expiresAt = passivationExpiry(id, now);
+    if (expiresAt > now) {
+      expirationWheel.schedule(id, expiresAt);
+      return;
+    }
+    if (passivationLog.discard(id)) {
+      if (DEBUG) {
+        log.debug("Passivated session " + id + " has expired.");
+      }
+      sessionsExpired.incrementAndGet();
+      if (sessions.contains(id)) {
+        try {
+          remove(id);
+        } catch (IOException e) {
+          log.error(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  protected long passivationExpiry(String id, long now) {
+    long expiresAt = passivationLog.getExpiresAt(id);
+    // Never times out on its own, so check back now and then
+    return (expiresAt == Long.MAX_VALUE ? now + expirationTick * 60 : expiresAt);
+  }
+
+  /**
+   * Put a local session in the expiration wheel.
+   *
+   * @param session
+   */
+  protected void scheduleExpiration(CloudSession session) {
+    if (null != expirationWheel) {
+      long expiresAt = session.getExpiryTime();
+      if (expiresAt == Long.MAX_VALUE) {
+        // Never times out on its own, but check back in case its timeout is changed
+        expiresAt = System.currentTimeMillis() + expirationTick * 60;
+      }
+      if (null != passivationLog && !session.isReplica()) {
+        // Come back in time to write it out if it's still not being used
+        expiresAt = Math.min(expiresAt, session.getThisAccessedTimeInternal() + maxIdlePassivate * 1000L);
+      }
+      expirationWheel.schedule(session.getIdInternal(), expiresAt);
+    }
+  }
+
+  /**
+   * Try to load the given session ID using a loader object that works in a separate thread.
+   *
+   * @param id
+   * @return The Session object or null if this loader times out.
+   * @throws ClassNotFoundException
+   * @throws IOException
+   */
+  public Session load(String id) throws ClassNotFoundException, IOException {
+    // Check locally first
+    CloudSession session = localSessions.get(id);
+    if (null != session) {
+      if (DEBUG) {
+        log.debug("Found a local session for: " + id);
+      }
+      return session;
+    }
+
+    // It may have been written out to disk for not being used
+    if (null != passivationLog) {
+      session = activate(id);
+      if (null != session) {
+        return session;
+      }
+    }
+
+    // A copy we already got from the owner is good until the owner says otherwise
+    if (null != nearCache && sessions.contains(id)) {
+      session = nearCache.get(id);
+      if (null != session && session.isIdle()) {
+        // Our copy's timestamps are only as good as our own requests, so let the owner decide whether it has expired
+        nearCache.remove(id);
+        session = null;
+      }
+      if (null != session) {
+        if (DEBUG) {
+          log.debug("Found a near-cached copy of " + id + " at version " + session.getVersion());
+        }
+        return session;
+      }
+    }
+
+    // We might have been holding a copy for whoever owned it
+    if (null != replicaArena) {
+      session = promoteReplica(id);
+      if (null != session) {
+        return session;
+      }
+    }
+
+    // Load from the cloud
+    SessionLoader loader;
+    if (sessions.contains(id)) {
+      if (DEBUG) {
+        log.debug("Loading session from the cloud: " + id);
+      }
+      // Only one load per session goes out over the network, everyone else asking for it waits on that one
+      SessionLoader existing = sessionLoaders.putIfAbsent(id, loader = new SessionLoader(id));
+      boolean owner = (null == existing);
+      if (owner) {
+        loadsStarted.incrementAndGet();
+      } else {
+        loader = existing;
+        if (!loader.join()) {
+          loadWaitersRejected.incrementAndGet();
+          log.warn("Too many requests waiting on session " + id + ", not waiting for it.");
+          return null;
+        }
+        loadsCoalesced.incrementAndGet();
+      }
+      for (int i = 0; i < maxRetries; i++) {
+        if (DEBUG && i > 0) {
+          log.debug("********* Load attempt: " + (i + 1));
+        }
+        if (owner) {
+          loader.send();
+        }
+        session = loader.getSession();
+        if (null == session) {
+          if (DEBUG) {
+            log.debug(" ***** SESSION LOADER TIMEOUT! *****");
+            log.debug("Loader: " + loader.toString());
+            log.debug("Cloud: " + sessions.toString());
+            log.debug("Local: " + localSessions.toString());
+          }
+          if (loader.isDone()) {
+            // The loader we were waiting on gave up
+            break;
+          }
+        } else {
+          if (DEBUG) {
+            double runtime = ((System.currentTimeMillis() - loader.getStartTime()) * .001);
+            log.debug("Loader runtime: " + new DecimalFormat("#.###s").format(runtime));
+          }
+          break;
+        }
+      }
+      if (owner) {
+        if (null != session && null != nearCache) {
+          nearCache.put(session);
+        }
+        sessionLoaders.remove(id, loader);
+        pendingLoads.remove(loader.getCorrelationId());
+        // Let anyone still waiting go, with or without a session
+        loader.complete(session);
+      } else {
+        loader.leave();
+      }
+    }
+
+    return session;
+  }
+
+  /**
+   * Bring a replica we've been keeping off the heap back onto it. It's still a replica, the same as one that was on
+   * the heap all along; serving a read doesn't make this node its owner.
+   *
+   * @param id
+   * @return The session or <code>null</code> if we didn't have a copy.
+   */
+  protected CloudSession promoteReplica(String id) {
+    ReplicaArena.Replica replica = replicaArena.remove(id);
+    if (null == replica) {
+      // Another thread may have just promoted it
+      return localSessions.get(id);
+    }
+    CloudSession session = (CloudSession) manager.createEmptySession();
+    try {
+      byte[] bytes = decodePayload(replica.getContentEncoding(), replica.getBytes());
+      getSessionDeserializer(session, replica.getContentType(), bytes).deserialize();
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      return null;
+    }
+    session.setVersion(replica.getVersion());
+    session.setReplica(true);
+    session.advanceAccessedTime(replica.getAccessedAt());
+    if (DEBUG) {
+      log.debug("Promoting off-heap replica of " + id + " at version " + replica.getVersion());
+    }
+    replicasPromoted.incrementAndGet();
+    CloudSession existing = localSessions.putIfAbsent(id, session);
+    if (null != existing) {
+      return existing;
+    }
+    scheduleExpiration(session);
+    return session;
+  }
+
+  /**
+   * Ask every other node to stream us the sessions it owns. Each one sends them in chunks of about
+   * <b>bulkChunkSize</b> bytes, no more than <b>bulkCredits</b> ahead of what we've installed.
+   *
+   * @throws IOException
+   */
+  public void requestAll() throws IOException {
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("transfer", storeId + "." + bulkSequence.incrementAndGet());
+    headers.put("credit", String.valueOf(bulkCredits));
+    sendEvent("getall", new byte[0], headers);
+  }
+
+  /**
+   * Install the sessions in one chunk of a bulk transfer. In ONEFORALL mode, only the IDs are sent.
+   *
+   * @param record
+   * @throws IOException
+   */
+  protected void installBulk(SessionSnapshot.Record record) throws IOException {
+    String id = record.getId();
+    sessions.add(id);
+    if (operationMode != Mode.REPLICATED || record.getBytes().length == 0 || localSessions.containsKey(id)) {
+      // Anything we already have is kept up to date by replication
+      return;
+    }
+    if (null != replicaArena) {
+      if (replicaArena.getVersion(id) < record.getVersion()) {
+        boolean isNew = !replicaArena.contains(id);
+        if (replicaArena.put(id, record.getVersion(), record.getContentType(), record.getContentEncoding(),
+            Long.MAX_VALUE, record.getBytes()) && isNew && null != expirationWheel) {
+          expirationWheel.schedule(id, System.currentTimeMillis() + expirationTick * 60);
+        }
+      }
+      return;
+    }
+    CloudSession session = (CloudSession) manager.createEmptySession();
+    byte[] bytes = decodePayload(record.getContentEncoding(), record.getBytes());
+    getSessionDeserializer(session, record.getContentType(), bytes).deserialize();
+    session.setVersion(record.getVersion());
+    session.setReplica(true);
+    if (null == localSessions.putIfAbsent(id, session)) {
+      scheduleExpiration(session);
+    }
+  }
+
+  /**
+   * IDs of the sessions this node owns, passivated ones included.
+   *
+   * @return
+   */
+  protected List<String> ownedIds() {
+    List<String> ids = new ArrayList<String>(localSessions.size());
+    for (CloudSession session : localSessions.values()) {
+      if (!session.isReplica()) {
+        ids.add(session.getIdInternal());
+      }
+    }
+    if (null != passivationLog) {
+      ids.addAll(Arrays.asList(passivationLog.ids()));
+    }
+    return ids;
+  }
+
+  /**
+   * One round of anti-entropy: tell everyone which sessions we own, then check the digests everyone sent last round
+   * against the sessions we think exist.
+   *
+   * @throws IOException
+   */
+  protected void antiEntropy() throws IOException {
+    antiEntropyRounds.incrementAndGet();
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("application/octet-stream");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("digest");
+    getChannelPool().publish("digest", eventsExchange, "", props,
+        SessionDigest.of(ownedIds(), antiEntropyBuckets).toBytes());
+    reconcile();
+  }
+
+  /**
+   * Find the buckets where the sessions we know about don't match what the nodes say they own. A bucket has to be off
+   * two rounds running before it's repaired, since touches and destroys still on their way will throw off any one
+   * round.
+   */
+  protected void reconcile() {
+    long stale = System.currentTimeMillis() - antiEntropyInterval * 3000L;
+    SessionDigest cloud = new SessionDigest(antiEntropyBuckets);
+    List<String> nodes = new ArrayList<String>();
+    for (Map.Entry<String, SessionDigest> entry : digests.entrySet()) {
+      SessionDigest digest = entry.getValue();
+      if (digest.getReceivedAt() < stale) {
+        // That node's gone quiet, so whatever it owned isn't reachable anymore
+        digests.remove(entry.getKey(), digest);
+        continue;
+      }
+      if (digest.getBucketCount() != antiEntropyBuckets) {
+        // Can't tell which of its sessions are which, so we can't safely drop anything
+        log.warn("Node " + entry.getKey() + " uses " + digest.getBucketCount() + " anti-entropy buckets, we use "
+            + antiEntropyBuckets);
+        return;
+      }
+      cloud.merge(digest);
+      nodes.add(entry.getKey());
+    }
+    if (!nodes.contains(sourceEventsQueue)) {
+      // Our own digest hasn't made it around yet
+      return;
+    }
+
+    String[] known = sessions.toArray();
+    SessionDigest local = SessionDigest.of(Arrays.asList(known), antiEntropyBuckets);
+    Map<Integer, Long> suspect = new LinkedHashMap<Integer, Long>();
+    for (int b = 0; b < antiEntropyBuckets; b++) {
+      long signature = cloud.getBucket(b) ^ local.getBucket(b);
+      if (signature == 0 || signature == settled[b]) {
+        divergence[b] = 0;
+        continue;
+      }
+      if (++divergence[b] >= 2) {
+        suspect.put(b, signature);
+      }
+    }
+    if (!suspect.isEmpty()) {
+      repair(suspect, nodes, known);
+    }
+  }
+
+  /**
+   * Ask every node which sessions it owns in the suspect buckets and make our list match. Nothing is changed unless
+   * every node answers. Only IDs we knew about before asking are dropped, so a session created in the meantime isn't
+   * mistaken for a ghost.
+   *
+   * @param suspect Buckets to repair, with the mismatch found in each.
+   * @param nodes
+   * @param known   The session IDs we knew about when the mismatch was found.
+   */
+  protected void repair(Map<Integer, Long> suspect, List<String> nodes, String[] known) {
+    Repair repair = new Repair(storeId + ".repair." + antiEntropyRounds.get(), nodes);
+    repairs.put(repair.id, repair);
+    try {
+      StringBuilder body = new StringBuilder();
+      for (Integer b : suspect.keySet()) {
+        if (body.length() > 0) {
+          body.append(',');
+        }
+        body.append(b);
+      }
+      Map<String, Object> headers = new LinkedHashMap<String, Object>();
+      headers.put("transfer", repair.id);
+      sendEvent("repair", body.toString().getBytes(), headers);
+      if (!repair.await(loadTimeout, TimeUnit.SECONDS)) {
+        if (DEBUG) {
+          log.debug("Not every node answered repair " + repair.id + ", still waiting on " + repair.waiting);
+        }
+        return;
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } finally {
+      repairs.remove(repair.id);
+    }
+
+    Set<Integer> changed = new HashSet<Integer>();
+    int removed = 0;
+    int added = 0;
+    for (String id : known) {
+      int b = SessionDigest.bucketOf(id, antiEntropyBuckets);
+      if (suspect.containsKey(b) && !repair.ids.contains(id) && !localSessions.containsKey(id)
+          && !sessionLoaders.containsKey(id) && (null == passivationLog || !passivationLog.contains(id))) {
+        if (sessions.remove(id)) {
+          if (null != nearCache) {
+            nearCache.remove(id);
+          }
+          changed.add(b);
+          removed++;
+        }
+      }
+    }
+    for (String id : repair.ids) {
+      if (sessions.add(id)) {
+        changed.add(SessionDigest.bucketOf(id, antiEntropyBuckets));
+        added++;
+      }
+    }
+    for (Map.Entry<Integer, Long> entry : suspect.entrySet()) {
+      int b = entry.getKey();
+      divergence[b] = 0;
+      if (!changed.contains(b)) {
+        // Nothing to fix, so don't bother with this mismatch again
+        settled[b] = entry.getValue();
+      }
+    }
+    bucketsRepaired.addAndGet(changed.size());
+    ghostSessionsRemoved.addAndGet(removed);
+    missingSessionsAdded.addAndGet(added);
+    if (removed > 0 || added > 0) {
+      log.info("Anti-entropy repaired " + changed.size() + " buckets: dropped " + removed + " ghost sessions, added "
+          + added + " missing ones");
+    }
+  }
+
+  /**
+   * Remove this session ID from the cloud by sending out a "destroy" message, which causes every node to delete this
+   * session ID from its membership.
+   *
+   * @param id
+   * @throws IOException
+   */
+
+  public void remove(String id) throws IOException {
+    sessions.remove(id);
+    localSessions.remove(id);
+    if (null != nearCache) {
+      nearCache.remove(id);
+    }
+    if (null != replicaArena) {
+      replicaArena.discard(id);
+    }
+    if (null != passivationLog) {
+      passivationLog.discard(id);
+    }
+    sendMembership("destroy", id);
+  }
+
+  /**
+   * This wipes out everything. Creates a complete blank slate everywhere in the cloud.
+   *
+   * @throws IOException
+   */
+  public void clear() throws IOException {
+    sendEvent("clear", new byte[0]);
+  }
+
+  /**
+   * Only clear local sessions. This method is likely only useful to JMX clients.
+   */
+  public void clearLocalSessions() {
+    localSessions.clear();
+    if (null != passivationLog) {
+      passivationLog.clear();
+    }
+  }
+
+  /**
+   * @param session
+   * @throws IOException
+   */
+  public void save(Session session) throws IOException {
+    String id = session.getId();
+    if (sessions.add(id)) {
+      // This is a new session.
+      String qname = String.format(sessionEventsQueuePattern, id);
+      ChannelPool pool = getChannelPool();
+      Channel channel = pool.acquire(id);
+      try {
+        channel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
+      } finally {
+        pool.release(id);
+      }
+      boundSessions.add(id);
+      sendMembership("touch", id);
+      replicateSession(session, true);
+    }
+    if (null == localSessions.put(id, (CloudSession) session)) {
+      scheduleExpiration((CloudSession) session);
+    }
+  }
+
+  public void processDeleteEvent(String sessionId) {
+    if (deleteEvents.remove(sessionId)) {
+      localSessions.remove(sessionId);
+    }
+  }
+
+  /**
+   * Basically an "update" event. Nothing goes out if the session hasn't changed since the last copy we sent, as long as
+   * that copy is recent enough to keep replicas from thinking the session is idle.
+   *
+   * @param session
+   * @throws IOException
+   */
+  public void replicateSession(Session session) throws IOException {
+    replicateSession(session, false);
+  }
+
+  /**
+   * @param session
+   * @param force   Send a copy even if nothing has changed.
+   * @throws IOException
+   */
+  public void replicateSession(Session session, boolean force) throws IOException {
+    reclaim(session);
+    CloudSession cloudSession = (session instanceof CloudSession ? (CloudSession) session : null);
+    if (null != cloudSession) {
+      // Whatever was dirty goes out with the full copy, so start tracking changes over
+      cloudSession.takeDirtyAttributes();
+    }
+
+    SessionSerializer serializer = getSessionSerializer(session);
+    serializer.setSession(session);
+    byte[] bytes = serializer.serialize();
+    long fingerprint = serializer.getFingerprint();
+
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType(getSessionContentType(session));
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("replicate");
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("id", session.getId());
+    if (null != cloudSession) {
+      boolean suppressed = false;
+      synchronized (cloudSession) {
+        if (!force && cloudSession.isPublished(fingerprint, accessPropagation <= 0)) {
+          suppressed = true;
+        } else {
+          headers.put("version", String.valueOf(cloudSession.nextVersion()));
+        }
+      }
+      if (suppressed) {
+        replicationsSuppressed.incrementAndGet();
+        propagateAccess(cloudSession);
+        return;
+      }
+      headers.put("expires", String.valueOf(cloudSession.getExpiryTime()));
+    }
+    props.setHeaders(headers);
+    bytes = encodePayload(props, bytes);
+
+    publishSessionEvent(session, props, bytes);
+    replicationsPublished.incrementAndGet();
+    if (null != cloudSession) {
+      cloudSession.setPublishedFingerprint(fingerprint);
+      announceVersion(cloudSession);
+    }
+  }
+
+  /**
+   * Send only the attributes that changed since this session was last replicated, along with the timestamps a replica
+   * needs to keep its expiration in step with ours.
+   *
+   * @param session
+   * @throws IOException
+   */
+  public void replicateDelta(CloudSession session) throws IOException {
+    reclaim(session);
+    Map<String, Boolean> dirty;
+    SessionDelta delta;
+    synchronized (session) {
+      dirty = session.takeDirtyAttributes();
+      if (dirty.isEmpty() && accessPropagation > 0) {
+        delta = null;
+      } else {
+        long baseVersion = session.getVersion();
+        delta = new SessionDelta(baseVersion, session.nextVersion());
+      }
+    }
+    if (null == delta) {
+      // Nothing changed but the access time, which can go out on its own
+      propagateAccess(session);
+      return;
+    }
+    session.copyAccessedTimeTo(delta);
+    session.markAccessPropagated();
+    addAttributes(delta, session, dirty);
+
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("application/octet-stream");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("delta");
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("id", session.getId());
+    headers.put("version", String.valueOf(delta.getVersion()));
+    props.setHeaders(headers);
+
+    byte[] bytes = encodePayload(props, delta.serialize());
+    if (DEBUG) {
+      log.debug("Replicating " + delta.getOperations().size() + " changed attribute(s) of " + session.getId() + " in "
+          + bytes.length + " bytes");
+    }
+
+    publishSessionEvent(session, props, bytes);
+  }
+
+  /**
+   * Let the other nodes know this session was used, if it's been <b>accessPropagation</b> of its timeout since they
+   * last heard. Only the ID, the access time and the resulting expiration time go out, so whoever's holding a copy can
+   * keep it from expiring without reading it.
+   *
+   * @param session
+   * @throws IOException
+   */
+  public void propagateAccess(CloudSession session) throws IOException {
+    if (accessPropagation <= 0) {
+      return;
+    }
+    String id = session.getIdInternal();
+    if (operationMode.equals(Mode.ONEFORALL) && localSessions.get(id) == session) {
+      // We own it, and nobody else times it out
+      return;
+    }
+    if (!session.markAccessPropagated(accessPropagation)) {
+      accessEventsThrottled.incrementAndGet();
+      return;
+    }
+
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("access");
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("id", id);
+    headers.put("accessed", String.valueOf(session.getThisAccessedTimeInternal()));
+    headers.put("expires", String.valueOf(session.getExpiryTime()));
+    props.setHeaders(headers);
+
+    publishSessionEvent(session, props, new byte[0]);
+    accessEventsSent.incrementAndGet();
+  }
+
+  /**
+   * Move up the access time of whatever copy of a session we're holding: a live one, one kept off the heap or one
+   * that's been written out.
+   *
+   * @param id
+   * @param accessedAt
+   * @param expiresAt
+   */
+  protected void applyAccess(String id, long accessedAt, long expiresAt) {
+    CloudSession session = localSessions.get(id);
+    if (null != session) {
+      session.advanceAccessedTime(accessedAt);
+    } else if (!(null != replicaArena && replicaArena.touch(id, accessedAt, expiresAt))
+        && !(null != passivationLog && passivationLog.touch(id, accessedAt, expiresAt))) {
+      return;
+    }
+    accessEventsApplied.incrementAndGet();
+  }
+
+  /**
+   * Send every attribute write buffered during this request as a single message. Repeated writes to the same attribute
+   * have already collapsed down to the last one.
+   *
+   * @param session
+   * @throws IOException
+   */
+  public void flushAttributes(CloudSession session) throws IOException {
+    Map<String, Boolean> dirty = session.takeDirtyAttributes();
+    if (dirty.isEmpty()) {
+      return;
+    }
+    SessionDelta delta = new SessionDelta(session.getVersion(), session.getVersion());
+    session.copyAccessedTimeTo(delta);
+    session.markAccessPropagated();
+    addAttributes(delta, session, dirty);
+
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("application/octet-stream");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("setattrs");
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("id", session.getId());
+    props.setHeaders(headers);
+
+    byte[] bytes = encodePayload(props, delta.serialize());
+    if (DEBUG) {
+      log.debug("Flushing " + delta.getOperations().size() + " attribute write(s) for " + session.getId());
+    }
+
+    publishSessionEvent(session, props, bytes);
+    announceVersion(session);
+  }
+
+  /**
+   * Serialize the current value of each changed attribute into the delta.
+   *
+   * @param delta
+   * @param session
+   * @param dirty
+   */
+  protected void addAttributes(SessionDelta delta, CloudSession session, Map<String, Boolean> dirty) {
+    for (Map.Entry<String, Boolean> entry : dirty.entrySet()) {
+      String attr = entry.getKey();
+      Object obj = (entry.getValue() ? session.getAttributeInternal(attr) : null);
+      if (null == obj) {
+        delta.removeAttribute(attr);
+      } else {
+        AttributeSerializer ser = new InternalAttributeSerializer();
+        ser.setObject(obj);
+        byte[] bytes = ser.serialize();
+        // Not serializable, so it wouldn't have gone out with the full session either
+        if (null != bytes) {
+          delta.setAttribute(attr, bytes);
+        }
+      }
+    }
+  }
+
+  public void replicateAttribute(CloudSession session, String attr) throws IOException {
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("application/octet-stream");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("setattr");
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("id", session.getId());
+    headers.put("attribute", attr);
+    props.setHeaders(headers);
+
+    AttributeSerializer ser = new InternalAttributeSerializer();
+    ser.setObject(session.getAttribute(attr));
+    byte[] bytes = ser.serialize();
+    if (null == bytes) {
+      // Not serializable, so there's nothing we could send
+      return;
+    }
+    bytes = encodePayload(props, bytes);
+
+    publishSessionEvent(session, props, bytes);
+    announceVersion(session);
+  }
+
+  public void removeAttribute(CloudSession session, String attr) throws IOException {
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("application/octet-stream");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType("delattr");
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("id", session.getId());
+    props.setHeaders(headers);
+
+    publishSessionEvent(session, props, attr.getBytes());
+    announceVersion(session);
+  }
+
+  /**
+   * When the owner of a session changes it in ONEFORALL mode, tell everyone what version it's at now so they can drop
+   * any near-cached copies older than that. Changes made on other nodes are announced by the owner once it has applied
+   * them.
+   *
+   * @param session
+   */
+  protected void announceVersion(CloudSession session) {
+    if (null == nearCache || localSessions.get(session.getId()) != session) {
+      return;
+    }
+    Map<String, Object> headers = new LinkedHashMap<String, Object>();
+    headers.put("version", String.valueOf(session.nextVersion()));
+    try {
+      sendEvent("touch", session.getId().getBytes(), headers);
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Wait for the broker to acknowledge the last message sent about this session. Everything about a session goes out
+   * in order, so once that one is in, the ones before it are too.
+   *
+   * @param session
+   * @return <code>false</code> if the broker hasn't acknowledged it within <b>confirmTimeout</b> milliseconds.
+   */
+  public boolean awaitConfirm(CloudSession session) {
+    ConfirmingPublisher.Publish p = session.getLastPublish();
+    if (null == p) {
+      return true;
+    }
+    try {
+      return p.await(confirmTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @Override
+  public void start() throws LifecycleException {
+    setState("starting");
+    MDC.put("method", "start()");
+    super.start();
+    if (DEBUG) {
+      log.debug("Starting CloudStore: " + storeId);
+    }
+
+    if (manager instanceof ManagerBase) {
+      // Tomcat's IDs are hex, two digits to a byte
+      sessions = new SessionIdIndex(((ManagerBase) manager).getSessionIdLength() * 2);
+      boundSessions = new SessionIdIndex(sessions.getIdLength());
+    }
+
+    try {
+      mqChannel = getMqChannel();
+
+      synchronized (mqChannel) {
+        // Messages bound for all nodes in cluster go here
+        mqChannel.exchangeDeclare(eventsExchange, "fanout", true);
+        mqChannel.queueDeclare(eventsQueue, true, false, false, null);
+        mqChannel.queueBind(eventsQueue, eventsExchange, "");
+
+        // Messages bound for just this node go here
+        mqChannel.queueDeclare(sourceEventsQueue, true, false, false, null);
+
+        // Session events
+        mqChannel.exchangeDeclare(sessionEventsExchange, "topic", true);
+
+        // Replication events
+        if (null != replicationEventsExchange && !replicationEventsExchange.trim().equals("")) {
+          mqChannel.exchangeDeclare(replicationEventsExchange, "topic", true);
+          mqChannel.queueDeclare(replicationEventsQueue, true, false, false, null);
+          mqChannel.queueBind(replicationEventsQueue, replicationEventsExchange, replicationEventsRoutingKey);
+        }
+      }
+
+      expirationWheel = new ExpirationWheel(expirationTick, 4096);
+      if (operationMode == Mode.REPLICATED && offHeapReplicaBytes > 0) {
+        replicaArena = new ReplicaArena(offHeapReplicaBytes);
+      }
+
+      if (operationMode == Mode.ONEFORALL && nearCacheSize > 0) {
+        nearCache = new NearCache(nearCacheSize);
+      }
+
+      if (null != passivationDirectory && !passivationDirectory.trim().equals("")) {
+        passivationLog = new PassivationLog(new File(passivationDirectory, storeId), passivationSegmentSize);
+      }
+
+      startWorkers();
+
+      if (isSnapshotEnabled()) {
+        restoreSnapshot();
+      }
+
+      if (requestAllOnStart) {
+        requestAll();
+      }
+
+      if (antiEntropyInterval > 0) {
+        divergence = new int[antiEntropyBuckets];
+        settled = new long[antiEntropyBuckets];
+        antiEntropyTimer = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("anti-entropy", "anti-entropy-"));
+        antiEntropyTimer.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            try {
+              antiEntropy();
+            } catch (Throwable t) {
+              log.error(t.getMessage(), t);
+            }
+          }
+        }, 0, antiEntropyInterval, TimeUnit.SECONDS);
+      }
+
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+
+    try {
+      objectName = new ObjectName("vCloud:type=SessionStore,id=" + storeId);
+      Registry.getRegistry(null, null).registerComponent(this, objectName, null);
+    } catch (MalformedObjectNameException e) {
+      log.error(e.getMessage(), e);
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+    }
+    MDC.remove("method");
+    setState("started");
+  }
+
+  @Override
+  public void stop() throws LifecycleException {
+    setState("stopping");
+    MDC.put("method", "stop()");
+    try {
+      if (isSnapshotEnabled() && writeSnapshot()) {
+        // We'll pick these back up when we start again
+        localSessions.clear();
+        if (null != passivationLog) {
+          passivationLog.clear();
+        }
+      } else {
+        // Make sure local sessions are replicated off this server
+        drainSessions();
+      }
+
+      // Give the broker a chance to take whatever is still waiting to be acknowledged
+      if (null != confirmingPublisher) {
+        long deadline = System.currentTimeMillis() + confirmTimeout;
+        while (confirmingPublisher.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            log.error(e.getMessage(), e);
+            break;
+          }
+        }
+      }
+
+      // Anything still waiting to go out in a batch
+      if (null != membershipPublisher) {
+        membershipPublisher.flush();
+      }
+
+      synchronized (this) {
+        if (deleteQueuesOnStop) {
+          getMqChannel();
+          mqChannel.queueDelete(eventsQueue);
+          mqChannel.queueDelete(sourceEventsQueue);
+          mqChannel.queueDelete(replicationEventsQueue);
+        }
+        if (null != channelPool) {
+          channelPool.close();
+          channelPool = null;
+        }
+        mqChannel.close();
+        mqConnection.close();
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+
+    if (null != passivationLog) {
+      passivationLog.close();
+      passivationLog = null;
+    }
+
+    // Remove ourself from JMX
+    Registry.getRegistry(null, null).unregisterComponent(objectName);
+
+    // Stop worker threads
+    stopWorkers();
+    MDC.remove("method");
+    setState("stopped");
+  }
+
+  /**
+   * Replicate every session this node owns, passivated or not, on <b>drainParallelism</b> threads. With
+   * <b>confirmPublishes</b> on, a session only counts as drained once the broker has it. Whatever isn't done by
+   * <b>drainTimeout</b> is given up on. Replicas are left alone since whoever owns them still has them.
+   */
+  protected void drainSessions() {
+    long start = System.currentTimeMillis();
+    final long deadline = start + drainTimeout;
+    final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    pending.addAll(ownedIds());
+    int total = pending.size();
+    final AtomicInteger drained = new AtomicInteger(0);
+    final AtomicInteger failed = new AtomicInteger(0);
+
+    // Only a few waiting at a time; when they back up, the stopping thread pitches in
+    int parallelism = Math.max(1, drainParallelism);
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(parallelism * 4), new DaemonThreadFactory("drain", "drain-"),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    for (final String id : pending.toArray(new String[pending.size()])) {
+      if (System.currentTimeMillis() >= deadline) {
+        break;
+      }
+      pool.execute(new Runnable() {
+        public void run() {
+          if (System.currentTimeMillis() >= deadline) {
+            return;
+          }
+          try {
+            CloudSession session = localSessions.get(id);
+            if (null == session && null != passivationLog) {
+              session = activate(id);
+            }
+            if (null != session) {
+              replicateSession(session, true);
+              if (confirmPublishes && !awaitConfirm(session)) {
+                failed.incrementAndGet();
+                log.warn("Session " + id + " wasn't acknowledged before stopping.");
+                return;
+              }
+              localSessions.remove(id, session);
+            }
+            pending.remove(id);
+            drained.incrementAndGet();
+          } catch (Throwable t) {
+            failed.incrementAndGet();
+            log.error(t.getMessage(), t);
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      log.error(e.getMessage(), e);
+    }
+    pool.shutdownNow();
+
+    drainElapsed = System.currentTimeMillis() - start;
+    sessionsDrained.set(drained.get());
+    drainFailures.set(total - drained.get());
+    localSessions.clear();
+    if (null != passivationLog) {
+      passivationLog.clear();
+    }
+    if (pending.isEmpty()) {
+      log.info("Drained " + drained.get() + " sessions in " + drainElapsed + "ms");
+    } else {
+      log.warn("Drained " + drained.get() + " of " + total + " sessions in " + drainElapsed + "ms ("
+          + failed.get() + " failed, " + (pending.size() - failed.get()) + " not gotten to)");
+      if (DEBUG) {
+        log.debug("Sessions not drained: " + pending);
+      }
+    }
+  }
+
+  /**
+   * Write every session this node owns, passivated or not, to the snapshot file. Sessions are serialized in parallel
+   * and written out in one pass.
+   *
+   * @return <code>false</code> if the snapshot couldn't be written, in which case the sessions should be replicated
+   *         instead.
+   */
+  protected boolean writeSnapshot() {
+    SessionSnapshot snapshot = new SessionSnapshot(new File(snapshotFile));
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, snapshotThreads),
+        new DaemonThreadFactory("snapshot", "snapshot-"));
+    List<Future<SessionSnapshot.Record>> records = new ArrayList<Future<SessionSnapshot.Record>>();
+    try {
+      for (final CloudSession session : localSessions.values()) {
+        if (session.isReplica()) {
+          continue;
+        }
+        records.add(pool.submit(new Callable<SessionSnapshot.Record>() {
+          public SessionSnapshot.Record call() throws Exception {
+            return (session.isIdle() ? null : toRecord(session));
+          }
+        }));
+      }
+      if (null != passivationLog) {
+        for (final String id : passivationLog.ids()) {
+          records.add(pool.submit(new Callable<SessionSnapshot.Record>() {
+            public SessionSnapshot.Record call() throws Exception {
+              PassivationLog.Entry entry = passivationLog.peek(id);
+              if (null == entry) {
+                return null;
+              }
+              return new SessionSnapshot.Record(id, entry.getContentType(), entry.getContentEncoding(),
+                  entry.getVersion(), entry.getBytes());
+            }
+          }));
+        }
+      }
+      long start = System.currentTimeMillis();
+      int written = snapshot.write(records);
+      sessionsSnapshotted.addAndGet(written);
+      log.info("Wrote " + written + " sessions to " + snapshot.getFile() + " in "
+          + (System.currentTimeMillis() - start) + "ms");
+      return true;
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      return false;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Serialize a session the way it would go out over the wire, for writing somewhere other than a replicate message.
+   *
+   * @param session
+   * @return
+   * @throws IOException
+   */
+  protected SessionSnapshot.Record toRecord(CloudSession session) throws IOException {
+    SessionSerializer serializer = getSessionSerializer(session);
+    serializer.setSession(session);
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    byte[] bytes = encodePayload(props, serializer.serialize());
+    return new SessionSnapshot.Record(session.getIdInternal(), getSessionContentType(session),
+        props.getContentEncoding(), session.getVersion(), bytes);
+  }
+
+  /**
+   * Put back the sessions this node had when it stopped, take over their queues again, and let the rest of the cloud
+   * know they're here with a single "touch" listing all of them. The snapshot is deleted once it's been read so it
+   * can't be read twice.
+   */
+  protected void restoreSnapshot() {
+    SessionSnapshot snapshot = new SessionSnapshot(new File(snapshotFile));
+    if (!snapshot.exists()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    List<SessionSnapshot.Record> records;
+    try {
+      records = snapshot.read();
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      snapshot.delete();
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, snapshotThreads),
+        new DaemonThreadFactory("snapshot", "snapshot-"));
+    List<Future<String>> restored = new ArrayList<Future<String>>(records.size());
+    for (final SessionSnapshot.Record record : records) {
+      restored.add(pool.submit(new Callable<String>() {
+        public String call() throws Exception {
+          return (restore(record) ? record.getId() : null);
+        }
+      }));
+    }
+    StringBuilder ids = new StringBuilder();
+    int count = 0;
+    for (Future<String> f : restored) {
+      try {
+        String id = f.get();
+        if (null != id) {
+          if (count++ > 0) {
+            ids.append('\n');
+          }
+          ids.append(id);
+        }
+      } catch (ExecutionException e) {
+        log.error(e.getMessage(), e);
+      } catch (InterruptedException e) {
+        log.error(e.getMessage(), e);
+        break;
+      }
+    }
+    pool.shutdownNow();
+    snapshot.delete();
+    sessionsRestored.addAndGet(count);
+
+    if (count > 0) {
+      try {
+        sendEvent("touch", ids.toString().getBytes());
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      }
+    }
+    log.info("Restored " + count + " of " + records.size() + " sessions from " + snapshot.getFile() + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Install one session from the snapshot.
+   *
+   * @param record
+   * @return <code>false</code> if it timed out while we were down.
+   * @throws IOException
+   */
+  protected boolean restore(SessionSnapshot.Record record) throws IOException {
+    String id = record.getId();
+    CloudSession session = (CloudSession) manager.createEmptySession();
+    byte[] bytes = decodePayload(record.getContentEncoding(), record.getBytes());
+    getSessionDeserializer(session, record.getContentType(), bytes).deserialize();
+    if (session.isIdle()) {
+      remove(id);
+      return false;
+    }
+    session.setVersion(record.getVersion());
+    sessions.add(id);
+    if (null == localSessions.putIfAbsent(id, session)) {
+      scheduleExpiration(session);
+    }
+    String qname = String.format(sessionEventsQueuePattern, id);
+    ChannelPool pool = getChannelPool();
+    Channel channel = pool.acquire(id);
+    try {
+      channel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
+    } finally {
+      pool.release(id);
+    }
+    boundSessions.add(id);
+    return true;
+  }
+
+  protected void stopWorkers() {
+    if (null != antiEntropyTimer) {
+      antiEntropyTimer.shutdownNow();
+      antiEntropyTimer = null;
+    }
+    for (Channel channel : consumerChannels) {
+      try {
+        // Whatever was pushed but not handled goes back on the queue
+        channel.close();
+      } catch (Throwable t) {
+        // IGNORED
+      }
+    }
+    consumerChannels.clear();
+    if (null != stripes) {
+      for (ThreadPoolExecutor stripe : stripes) {
+        stripe.shutdownNow();
+      }
+    }
+    for (Future f : workers) {
+      f.cancel(true);
+    }
+    try {
+      listenerPool.shutdownNow();
+    } catch (Throwable t) {
+      // IGNORED
+    }
+    try {
+      workerPool.shutdownNow();
+    } catch (Throwable t) {
+      // IGNORED
+    }
+    workers.clear();
+  }
+
+  protected void startWorkers() throws IOException {
+    if (isUsingVirtualThreads()) {
+      listenerPool = VirtualThreads.newThreadPerTaskExecutor(new DaemonThreadFactory("listeners", "listener-"));
+      workerPool = VirtualThreads.newThreadPerTaskExecutor(new DaemonThreadFactory("workers", "worker-"));
+    } else {
+      if (virtualThreads) {
+        log.warn("Virtual threads aren't available on this JVM, using platform threads.");
+      }
+      if (workerPool.isShutdown()) {
+        // Stopped and started again
+        listenerPool = Executors.newCachedThreadPool(new DaemonThreadFactory("listeners", "listener-"));
+        workerPool = Executors.newCachedThreadPool();
+      }
+    }
+    if (membershipBatchWindow > 0) {
+      membershipPublisher = new MembershipPublisher();
+      workers.add(workerPool.submit(membershipPublisher));
+    }
+    if (confirmPublishes) {
+      confirmingPublisher = new ConfirmingPublisher(getMqConnection(), confirmBufferSize);
+      workers.add(workerPool.submit(confirmingPublisher));
+    }
+    stripes = new ThreadPoolExecutor[Math.max(1, eventStripes)];
+    DaemonThreadFactory stripeThreads = new DaemonThreadFactory("stripes", "stripe-");
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+          stripeThreads);
+    }
+    consume(eventsQueue);
+    consume(sourceEventsQueue);
+    consume(replicationEventsQueue);
+  }
+
+  /**
+   * Start the broker pushing messages from this queue to an {@link EventConsumer} on a channel of its own.
+   *
+   * @param queue
+   * @throws IOException
+   */
+  protected void consume(String queue) throws IOException {
+    Channel channel = getMqConnection().createChannel();
+    if (eventPrefetch > 0) {
+      channel.basicQos(eventPrefetch);
+    }
+    channel.basicConsume(queue, false, new EventConsumer(channel));
+    consumerChannels.add(channel);
+  }
+
+  protected void restartListeners() throws IOException {
+    ChannelPool pool = getChannelPool();
+    for (String id : localSessions.keySet()) {
+      String qname = String.format(sessionEventsQueuePattern, id);
+      Channel channel = pool.acquire(id);
+      try {
+        channel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
+      } finally {
+        pool.release(id);
+      }
+    }
+  }
+
+  /**
+   * Send a lightweight message "event" to everyone. Used for simple events like "touch", "clear", and "destroy"
+   *
+   * @param type
+   * @param body
+   * @throws IOException
+   */
+  protected void sendEvent(String type, byte[] body) throws IOException {
+    sendEvent(type, body, null);
+  }
+
+  protected void sendEvent(String type, byte[] body, Map<String, Object> headers) throws IOException {
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("text/plain");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType(type);
+    props.setHeaders(headers);
+    // The body of a "touch" or "destroy" is the session ID, so this keeps those in order for any one session
+    getChannelPool().publish(new String(body), eventsExchange, "", props, body);
+  }
+
+  /**
+   * Tell everyone a session was created ("touch") or destroyed ("destroy"), batched up with others if
+   * <b>membershipBatchWindow</b> is set.
+   *
+   * @param type
+   * @param id
+   * @throws IOException
+   */
+  protected void sendMembership(String type, String id) throws IOException {
+    if (null != membershipPublisher) {
+      membershipPublisher.add(type, id);
+    } else {
+      sendEvent(type, id.getBytes());
+    }
+  }
+
+  protected void sendEventTo(String event, String source, byte[] body) throws IOException {
+    sendEventTo(event, source, body, null);
+  }
+
+  protected void sendEventTo(String event, String source, byte[] body, Map<String, Object> headers)
+      throws IOException {
+    AMQP.BasicProperties props = new AMQP.BasicProperties();
+    props.setContentType("text/plain");
+    props.setReplyTo(sourceEventsQueue);
+    props.setType(event);
+    props.setHeaders(headers);
+    getChannelPool().publish(source, "", source, props, body);
+  }
+
+  /**
+   * Publish a message about a session to the replication exchange and to whichever node is bound to the session's
+   * queue. Messages about the same session always go out on the same channel, so they arrive in order. In confirm mode
+   * they're handed to the confirming publisher instead, which sends everything from one thread, in order.
+   *
+   * @param session
+   * @param props
+   * @param bytes
+   * @throws IOException
+   */
+  protected void publishSessionEvent(Session session, AMQP.BasicProperties props, byte[] bytes) throws IOException {
+    String id = session.getId();
+    if (null != confirmingPublisher) {
+      String[] targets = new String[]{replicationEventsExchange, replicationEventsRoutingKey,
+          sessionEventsExchange, String.format(sessionEventsQueuePattern, id)};
+      ConfirmingPublisher.Publish p;
+      try {
+        p = confirmingPublisher.publish(targets, props, bytes, confirmTimeout);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while publishing " + id);
+      }
+      if (null == p) {
+        log.warn("Confirm buffer is full, dropping " + props.getType() + " of " + id);
+      } else if (session instanceof CloudSession) {
+        ((CloudSession) session).setLastPublish(p);
+      }
+      return;
+    }
+    ChannelPool pool = getChannelPool();
+    Channel channel = pool.acquire(id);
+    try {
+      channel.basicPublish(replicationEventsExchange, replicationEventsRoutingKey, props, bytes);
+      channel.basicPublish(sessionEventsExchange, String.format(sessionEventsQueuePattern, id), props, bytes);
+    } finally {
+      pool.release(id);
+    }
+  }
+
+  protected synchronized Connection getMqConnection() throws IOException {
+    if (null == mqConnection) {
+      ConnectionFactory factory = new ConnectionFactory();
+      factory.setHost(mqHost);
+      factory.setPort(mqPort);
+      factory.setUsername(mqUser);
+      factory.setPassword(mqPassword);
+      factory.setVirtualHost(mqVirtualHost);
+      factory.setRequestedHeartbeat(10);
+      mqConnection = factory.newConnection();
+    }
+    return mqConnection;
+  }
+
+  protected ChannelPool getChannelPool() throws IOException {
+    ChannelPool pool = channelPool;
+    if (null == pool) {
+      // Only locked the first time, since every publish comes through here
+      synchronized (this) {
+        if (null == channelPool) {
+          channelPool = new ChannelPool(getMqConnection(), channelPoolSize);
+        }
+        pool = channelPool;
+      }
+    }
+    return pool;
+  }
+
+  protected synchronized Channel getMqChannel() throws IOException {
+    if (null == mqChannel) {
+      if (DEBUG) {
+        log.debug("Creating a new RabbitMQ channel...");
+      }
+      mqChannel = getMqConnection().createChannel();
+    }
+    return mqChannel;
+  }
+
+  /**
+   * Content type the configured codec will produce for this session. The compact codec only knows how to write
+   * <b>CloudSession</b> objects.
+   *
+   * @param session
+   * @return
+   */
+  protected String getSessionContentType(Session session) {
+    if ("compact".equals(sessionCodec) && session instanceof CloudSession) {
+      return COMPACT_SESSION_TYPE;
+    }
+    return JAVA_SESSION_TYPE;
+  }
+
+  protected SessionSerializer getSessionSerializer(Session session) {
+    if (COMPACT_SESSION_TYPE.equals(getSessionContentType(session))) {
+      return new CompactSessionSerializer();
+    }
+    return new InternalSessionSerializer();
+  }
+
+  /**
+   * Get a deserializer that understands the given content type, using the webapp's classloader so custom objects in
+   * the session can be found.
+   *
+   * @param session
+   * @param contentType
+   * @param bytes
+   * @return
+   */
+  protected SessionDeserializer getSessionDeserializer(Session session, String contentType, byte[] bytes) {
+    return getSessionDeserializer(session, contentType, bytes, false);
+  }
+
+  /**
+   * @param session
+   * @param contentType
+   * @param bytes
+   * @param lazy        Leave attributes serialized until they're read, if the format allows it.
+   * @return
+   */
+  protected SessionDeserializer getSessionDeserializer(Session session, String contentType, byte[] bytes,
+                                                       boolean lazy) {
+    SessionDeserializer deserializer;
+    if (COMPACT_SESSION_TYPE.equals(contentType)) {
+      CompactSessionDeserializer compact = new CompactSessionDeserializer(session);
+      compact.setLazyAttributes(lazy);
+      deserializer = compact;
+    } else {
+      deserializer = new InternalSessionDeserializer(session);
+    }
+    deserializer.setBytes(bytes);
+    // ADAPTED FROM: from org.apache.catalina.session.FileStore.load()
+    Container container = manager.getContainer();
+    Loader loader;
+    if (null != container) {
+      loader = container.getLoader();
+      if (null != loader) {
+        deserializer.setClassLoader(loader.getClassLoader());
+      }
+    }
+    return deserializer;
+  }
+
+  /**
+   * Deflate the payload if it's big enough to be worth it and say so in the message's content encoding.
+   *
+   * @param props
+   * @param bytes
+   * @return
+   */
+  protected byte[] encodePayload(AMQP.BasicProperties props, byte[] bytes) {
+    if (compressionThreshold > 0 && bytes.length >= compressionThreshold) {
+      byte[] compressed = Compression.deflate(bytes);
+      if (compressed.length < bytes.length) {
+        props.setContentEncoding(Compression.DEFLATE);
+        return compressed;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Undo whatever {@link #encodePayload(AMQP.BasicProperties, byte[])} did on the sending side.
+   *
+   * @param contentEncoding
+   * @param bytes
+   * @return
+   * @throws IOException
+   */
+  protected byte[] decodePayload(String contentEncoding, byte[] bytes) throws IOException {
+    if (Compression.DEFLATE.equals(contentEncoding)) {
+      return Compression.inflate(bytes);
+    }
+    return bytes;
+  }
+
+  protected AttributeDeserializer getAttributeDeserializer(byte[] bytes) {
+    AttributeDeserializer deserializer = new InternalAttributeDeserializer();
+    deserializer.setBytes(bytes);
+    Container container = manager.getContainer();
+    Loader loader;
+    ClassLoader classLoader;
+    if (null != container) {
+      loader = container.getLoader();
+      if (null != loader) {
+        classLoader = loader.getClassLoader();
+        deserializer.setClassLoader(classLoader);
+      }
+    }
+    return deserializer;
+  }
+
+  /**
+   * A custom <b>ThreadFactory</b> implementation that uses a somewhat meaningful naming scheme to make troubleshooting
+   * easier.
+   */
+  protected class DaemonThreadFactory implements ThreadFactory {
+
+    protected String threadPrefix;
+    protected ThreadGroup workersGroup;
+    protected AtomicInteger count = new AtomicInteger(0);
+
+    public DaemonThreadFactory(String groupName, String threadPrefix) {
+      workersGroup = new ThreadGroup(groupName);
+      this.threadPrefix = threadPrefix;
+    }
+
+    public Thread newThread(Runnable r) {
+      if (isUsingVirtualThreads()) {
+        // Always daemons, and they don't belong to a group of our choosing
+        return VirtualThreads.newThread(threadPrefix + count.incrementAndGet(), r);
+      }
+      Thread t = new Thread(workersGroup, r);
+      t.setDaemon(true);
+      t.setName(threadPrefix + count.incrementAndGet());
+      return t;
+    }
+
+  }
+
+  /**
+   * Which stripe handles events for this session.
+   *
+   * @param id
+   * @return
+   */
+  protected ThreadPoolExecutor stripeFor(String id) {
+    return stripes[(id.hashCode() & 0x7FFFFFFF) % stripes.length];
+  }
+
+  /**
+   * Receives messages as the broker pushes them and hands each to the stripe for the session it's about, so events
+   * for one session are handled one at a time, in the order they came in, while other sessions are handled on the
+   * other stripes. Anything that isn't about a single session is cheap enough to handle right here. This runs on the
+   * connection's own thread, so it never waits on anything. How much piles up on the stripes is limited by
+   * <b>eventPrefetch</b>, since a message isn't acknowledged until it's been handled.
+   */
+  protected class EventConsumer extends DefaultConsumer {
+
+    protected ReentrantLock ackLock = new ReentrantLock();
+
+    public EventConsumer(Channel channel) {
+      super(channel);
+    }
+
+    /**
+     * Acknowledge a message from one of the stripe threads.
+     *
+     * @param deliveryTag
+     */
+    public void ack(long deliveryTag) {
+      ackLock.lock();
+      try {
+        getChannel().basicAck(deliveryTag, false);
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      } finally {
+        ackLock.unlock();
+      }
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties props, byte[] body)
+        throws IOException {
+      Event event = new Event(this, envelope.getDeliveryTag(), props, body, new AtomicInteger(1));
+      String key;
+      try {
+        switch (CloudSession.asEvent(props.getType())) {
+          case TOUCH:
+          case DESTROY:
+          case LOAD:
+            key = new String(body);
+            break;
+          case UPDATE:
+          case REPLICATE:
+          case DELTA:
+          case ACCESS:
+          case SETATTR:
+          case DELATTR:
+          case SETATTRS:
+            Object id = (null != props.getHeaders() ? props.getHeaders().get("id") : null);
+            if (null == id) {
+              log.warn("Ignoring " + props.getType() + " without a session ID from " + props.getReplyTo());
+              event.done();
+              return;
+            }
+            key = id.toString();
+            break;
+          default:
+            event.run();
+            return;
+        }
+      } catch (RuntimeException e) {
+        // An unknown type, or something else we can't make sense of. It still has to be acknowledged, or it holds
+        // a prefetch slot for as long as the channel is open.
+        log.warn("Ignoring event " + props.getType() + " from " + props.getReplyTo() + ": " + e);
+        event.done();
+        return;
+      }
+      try {
+        if (key.indexOf('\n') < 0) {
+          stripeFor(key).execute(event);
+          return;
+        }
+        // A batch of IDs gets split up by stripe, and acknowledged once every part is done
+        Map<ThreadPoolExecutor, StringBuilder> parts = new LinkedHashMap<ThreadPoolExecutor, StringBuilder>();
+        for (String id : key.split("\n")) {
+          ThreadPoolExecutor stripe = stripeFor(id);
+          StringBuilder part = parts.get(stripe);
+          if (null == part) {
+            parts.put(stripe, new StringBuilder(id));
+          } else {
+            part.append('\n').append(id);
+          }
+        }
+        AtomicInteger remaining = new AtomicInteger(parts.size());
+        for (Map.Entry<ThreadPoolExecutor, StringBuilder> part : parts.entrySet()) {
+          part.getKey().execute(new Event(this, envelope.getDeliveryTag(), props,
+              part.getValue().toString().getBytes(), remaining));
+        }
+      } catch (RejectedExecutionException e) {
+        // Shutting down. It'll be delivered again to whoever's still around.
+        if (DEBUG) {
+          log.debug("Not handling " + props.getType() + " while stopping");
+        }
+      }
+    }
+  }
+
+  /**
+   * One incoming message, or the part of a batch that falls on one stripe.
+   */
+  protected class Event implements Runnable {
+
+    protected EventConsumer consumer;
+    protected long deliveryTag;
+    protected AMQP.BasicProperties props;
+    protected byte[] body;
+    protected AtomicInteger remaining;
+    protected long receivedAt = System.currentTimeMillis();
+
+    public Event(EventConsumer consumer, long deliveryTag, AMQP.BasicProperties props, byte[] body,
+                 AtomicInteger remaining) {
+      this.consumer = consumer;
+      this.deliveryTag = deliveryTag;
+      this.props = props;
+      this.body = body;
+      this.remaining = remaining;
+    }
+
+    public void run() {
+      eventWaitTime.addAndGet(System.currentTimeMillis() - receivedAt);
+      MDC.put("method", props.getType() + ".delivery");
+      try {
+        handle();
+      } catch (Throwable t) {
+        log.error(t.getMessage(), t);
+      } finally {
+        MDC.remove("method");
+        done();
+      }
+    }
+
+    /**
+     * Acknowledge the message once the last part of it is done.
+     */
+    protected void done() {
+      if (remaining.decrementAndGet() == 0) {
+        consumer.ack(deliveryTag);
+      }
+    }
+
+    protected void handle() throws IOException {
+      Map<String, Object> headers = props.getHeaders();
+      String source = props.getReplyTo();
+      if (DEBUG) {
+        log.debug(" ***** INCOMING " + String.format("%s", props.getType())
+            .toUpperCase() + " [" + source + "]: " + props.toString());
+      }
+      String id;
+      CloudSessionMessage msg;
+      String attr;
+      CloudSession session;
+      switch (CloudSession.asEvent(props.getType())) {
+        case TOUCH:
+          id = new String(body);
+          if (id.indexOf('\n') >= 0) {
+            // A batch of IDs, either from a node that just restored its snapshot or from another node's
+            // MembershipPublisher
+            for (String touched : id.split("\n")) {
+              sessions.add(touched);
+            }
+            break;
+          }
+          sessions.add(id);
+          if (operationMode.equals(Mode.ONEFORALL) && !source.equals(sourceEventsQueue)) {
+            if (null != nearCache && null != headers && null != headers.get("version")) {
+              if (DEBUG) {
+                log.debug("Session " + id + " is now at version " + headers.get("version"));
+              }
+              nearCache.invalidate(id, Long.parseLong(headers.get("version").toString()),
+                  sessionLoaders.containsKey(id));
+            }
+          }
+          break;
+        case DESTROY:
+          // One ID, or a batch of them on separate lines
+          String[] destroyed = new String(body).split("\n");
+          for (String d : destroyed) {
+            if (null != nearCache) {
+              nearCache.remove(d);
+            }
+            if (null != replicaArena) {
+              replicaArena.discard(d);
+            }
+            if (null != passivationLog) {
+              passivationLog.discard(d);
+            }
+          }
+          new DestroyEventHandler(destroyed).run();
+          break;
+        case LOAD:
+          id = new String(body);
+          msg = new CloudSessionMessage();
+          msg.setType("load");
+          msg.setSource(source);
+          msg.setId(id);
+          msg.setCorrelationId(props.getCorrelationId());
+          new LoadEventHandler(msg).run();
+          break;
+        case ACCESS:
+          if (!source.equals(sourceEventsQueue)) {
+            applyAccess(headers.get("id").toString(), Long.parseLong(headers.get("accessed").toString()),
+                Long.parseLong(headers.get("expires").toString()));
+          }
+          break;
+        case UPDATE:
+        case REPLICATE:
+        case DELTA:
+          if (!source.equals(sourceEventsQueue)) {
+            String type = props.getType();
+            if (DEBUG) {
+              log.debug(type.toUpperCase() + " from " + source);
+            }
+            msg = new CloudSessionMessage();
+            msg.setType(type);
+            msg.setId(headers.get("id").toString());
+            if (null != headers.get("version")) {
+              msg.setVersion(Long.parseLong(headers.get("version").toString()));
+            }
+            if (null != headers.get("expires")) {
+              msg.setExpiresAt(Long.parseLong(headers.get("expires").toString()));
+            }
+            msg.setBody(body);
+            msg.setContentType(props.getContentType());
+            msg.setContentEncoding(props.getContentEncoding());
+            msg.setCorrelationId(props.getCorrelationId());
+            msg.setSource(source);
+            new UpdateEventHandler(msg).run();
+          }
+          break;
+        case CLEAR:
+          if (DEBUG) {
+            log.debug("Clearing all sessions.");
+          }
+          localSessions.clear();
+          if (null != nearCache) {
+            nearCache.clear();
+          }
+          if (null != replicaArena) {
+            replicaArena.clear();
+          }
+          if (null != passivationLog) {
+            passivationLog.clear();
+          }
+          break;
+        case GETALL:
+          if (!source.equals(sourceEventsQueue)) {
+            String transfer = (null != headers && null != headers.get("transfer")
+                ? headers.get("transfer").toString() : source);
+            int credit = (null != headers && null != headers.get("credit")
+                ? Integer.parseInt(headers.get("credit").toString()) : bulkCredits);
+            // Not waited on, since the credits it needs come in through a listener
+            workerPool.submit(new BulkSender(source, transfer, credit));
+          }
+          break;
+        case BULK:
+          workerPool.submit(new BulkInstaller(source, props.getContentEncoding(), headers, body));
+          break;
+        case DIGEST:
+          digests.put(source, SessionDigest.fromBytes(body));
+          break;
+        case REPAIR:
+          if (null != headers && null != headers.get("transfer")) {
+            workerPool.submit(new RepairEventHandler(source, headers.get("transfer").toString(),
+                new String(body)));
+          }
+          break;
+        case OWNED:
+          Repair repair = (null != headers && null != headers.get("transfer")
+              ? repairs.get(headers.get("transfer").toString()) : null);
+          if (null != repair) {
+            repair.answer(source, new String(body));
+          }
+          break;
+        case CREDIT:
+          BulkSender sender = bulkTransfers.get(new String(body));
+          if (null != sender) {
+            sender.credit();
+          }
+          break;
+        case SETATTR:
+          if (!source.equals(sourceEventsQueue)) {
+            id = headers.get("id").toString();
+            attr = headers.get("attribute").toString();
+            session = localSessions.get(id);
+            if (null != session) {
+              try {
+                byte[] decoded = decodePayload(props.getContentEncoding(), body);
+                AttributeDeserializer deser = getAttributeDeserializer(decoded);
+                Object obj = deser.deserialize();
+                session.maybeSetAttributeInternal(attr, obj);
+                announceVersion(session);
+              } catch (Throwable t) {
+                log.error(t.getMessage(), t);
+              }
+            }
+          }
+          break;
+        case DELATTR:
+          if (!source.equals(sourceEventsQueue)) {
+            id = headers.get("id").toString();
+            attr = new String(body);
+            session = localSessions.get(id);
+            if (null != session) {
+              session.maybeRemoveAttributeInternal(attr);
+              announceVersion(session);
+            }
+          }
+          break;
+        case SETATTRS:
+          if (!source.equals(sourceEventsQueue)) {
+            id = headers.get("id").toString();
+            session = localSessions.get(id);
+            if (null != session) {
+              try {
+                byte[] decoded = decodePayload(props.getContentEncoding(), body);
+                SessionDelta delta = SessionDelta.deserialize(decoded);
+                for (Map.Entry<String, byte[]> op : delta.getOperations().entrySet()) {
+                  if (null == op.getValue()) {
+                    session.maybeRemoveAttributeInternal(op.getKey());
+                  } else {
+                    Object obj = getAttributeDeserializer(op.getValue()).deserialize();
+                    session.maybeSetAttributeInternal(op.getKey(), obj);
+                  }
+                }
+                announceVersion(session);
+              } catch (Throwable t) {
+                log.error(t.getMessage(), t);
+              }
+            }
+          }
+          break;
+      }
+    }
+  }
+
+
+  /**
+   * Responsible for deserializing user sessions and dispatching them to the waiting response queues, or just keeping a
+   * copy of them as a replica.
+   */
+  protected class UpdateEventHandler implements Runnable {
+
+    protected CloudSessionMessage sessionMessage;
+
+    public UpdateEventHandler(CloudSessionMessage sessionMessage) {
+      this.sessionMessage = sessionMessage;
+    }
+
+    public void run() {
+      if (DEBUG) {
+        log.debug("************************ Update event: " + sessionMessage.toString());
+      }
+      if (storeOffHeap(sessionMessage)) {
+        return;
+      }
+      try {
+        sessionMessage.setBody(decodePayload(sessionMessage.getContentEncoding(), sessionMessage.getBody()));
+        sessionMessage.setContentEncoding(null);
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+        return;
+      }
+      if (sessionMessage.getType().equals("delta")) {
+        MDC.put("method", "processDeltaEvent()");
+        applyDelta(sessionMessage);
+        MDC.remove("method");
+        return;
+      }
+      MDC.put("method", "processUpdateEvent()");
+      if (sessionMessage.getBody().length == 0) {
+        // The node we asked didn't have it after all. The loader will ask again when it times out.
+        if (DEBUG) {
+          log.debug("Empty reply for " + sessionMessage.getId() + " from " + sessionMessage.getSource());
+        }
+        MDC.remove("method");
+        return;
+      }
+      if (isStale(sessionMessage, localSessions.get(sessionMessage.getId()))) {
+        // Don't bother deserializing something we'd only throw away
+        staleDrops.incrementAndGet();
+        if (DEBUG) {
+          log.debug("Dropping stale " + sessionMessage.getType() + " of " + sessionMessage.getId() + " at version "
+              + sessionMessage.getVersion());
+        }
+        MDC.remove("method");
+        return;
+      }
+      CloudSession session = (CloudSession) manager.createEmptySession();
+      // Use custom classloading so session attributes are preserved
+      // Most replicas are replaced before anyone reads them, so don't deserialize more than we have to
+      boolean lazy = (lazyAttributes
+          && "replicate".equals(sessionMessage.getType())
+          && !sessionLoaders.containsKey(sessionMessage.getId()));
+      SessionDeserializer deserializer = getSessionDeserializer(session,
+          sessionMessage.getContentType(),
+          sessionMessage.getBody(),
+          lazy);
+      try {
+        deserializer.deserialize();
+        if (sessionMessage.getVersion() >= 0) {
+          session.setVersion(sessionMessage.getVersion());
+        }
+        session.access();
+        String id = session.getId();
+        SessionLoader sessLoader = null;
+        if (null != sessionMessage.getCorrelationId()) {
+          sessLoader = pendingLoads.remove(sessionMessage.getCorrelationId());
+        }
+        if (null == sessLoader) {
+          // Replies from nodes that don't echo the correlation ID, and replications that beat the reply here
+          sessLoader = sessionLoaders.get(id);
+        }
+        if (null != sessLoader) {
+          if (DEBUG) {
+            log.debug("Giving deserizlied session to: " + sessLoader.toString());
+          }
+          if (operationMode == Mode.REPLICATED) {
+            session.setReplica(false);
+            if (null == localSessions.put(id, session)) {
+              scheduleExpiration(session);
+            }
+          }
+          // Someone is about to use this one
+          session.materializeAttributes();
+          sessLoader.complete(session);
+        } else if (sessionMessage.getType().equals("replicate")) {
+          if (operationMode == Mode.REPLICATED) {
+            session.setReplica(true);
+          }
+          if (localSessions.containsKey(id)) {
+            install(sessionMessage, session);
+          } else if (null != nearCache) {
+            // Somebody else changed it, so our copy is no good any more
+            nearCache.remove(id);
+          }
+        }
+        session.endAccess();
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      }
+      MDC.remove("method");
+    }
+
+    /**
+     * Keep a replica of a session we don't have just as it came in, without deserializing it, if the off-heap arena is
+     * turned on.
+     *
+     * @param sessionMessage
+     * @return <code>true</code> if there's nothing more to do with this message.
+     */
+    protected boolean storeOffHeap(CloudSessionMessage sessionMessage) {
+      String id = sessionMessage.getId();
+      if (null == replicaArena
+          || !"replicate".equals(sessionMessage.getType())
+          || localSessions.containsKey(id)
+          || sessionLoaders.containsKey(id)) {
+        return false;
+      }
+      long version = sessionMessage.getVersion();
+      if (version >= 0 && replicaArena.getVersion(id) >= version) {
+        staleDrops.incrementAndGet();
+        return true;
+      }
+      boolean isNew = !replicaArena.contains(id);
+      // Older nodes don't say when it expires, so hang on to it until it's destroyed
+      long expiresAt = (sessionMessage.getExpiresAt() > 0 ? sessionMessage.getExpiresAt() : Long.MAX_VALUE);
+      if (replicaArena.put(id, version, sessionMessage.getContentType(), sessionMessage.getContentEncoding(),
+          expiresAt, sessionMessage.getBody())) {
+        if (isNew && null != expirationWheel) {
+          expirationWheel.schedule(id,
+              (expiresAt == Long.MAX_VALUE ? System.currentTimeMillis() + expirationTick * 60 : expiresAt));
+        }
+      } else if (DEBUG) {
+        log.debug("No room off the heap for a replica of " + id);
+      }
+      return true;
+    }
+
+    /**
+     * Is this message older than the copy we already have? Replicas in REPLICATED mode all come from the node the
+     * session lives on, so its versions only go up. In ONEFORALL mode the version on a replicate from another node was
+     * made from whatever copy that node had, so it can't be compared against the owner's. Loads waiting on a reply
+     * always get it.
+     *
+     * @param sessionMessage
+     * @param current
+     * @return
+     */
+    protected boolean isStale(CloudSessionMessage sessionMessage, CloudSession current) {
+      return (operationMode == Mode.REPLICATED
+          && null != current
+          && sessionMessage.getVersion() >= 0
+          && "replicate".equals(sessionMessage.getType())
+          && !sessionLoaders.containsKey(sessionMessage.getId())
+          && current.getVersion() >= sessionMessage.getVersion());
+    }
+
+    /**
+     * Swap a newly-arrived copy in for the one we have, unless a newer one got in first from a load or a bulk
+     * transfer.
+     *
+     * @param sessionMessage
+     * @param session
+     */
+    protected void install(CloudSessionMessage sessionMessage, CloudSession session) {
+      String id = session.getId();
+      CloudSession current;
+      while (null != (current = localSessions.get(id))) {
+        if (isStale(sessionMessage, current)) {
+          staleDrops.incrementAndGet();
+          return;
+        }
+        if (localSessions.replace(id, current, session)) {
+          announceVersion(session);
+          return;
+        }
+      }
+    }
+
+    /**
+     * Patch our copy of the session in place. If our copy isn't the one the delta was made against, we've missed an
+     * update somewhere along the line, so a replica gets thrown away rather than patched into something that never
+     * existed. It'll be loaded fresh the next time it's needed.
+     *
+     * @param sessionMessage
+     */
+    protected void applyDelta(CloudSessionMessage sessionMessage) {
+      String id = sessionMessage.getId();
+      CloudSession session = localSessions.get(id);
+      if (null == session) {
+        if (null != replicaArena && replicaArena.discard(id) && DEBUG) {
+          // We'd have to deserialize it to patch it, so it'll just be loaded fresh if it's ever needed
+          log.debug("Dropping off-heap replica of " + id + " on delta");
+        }
+        return;
+      }
+      try {
+        SessionDelta delta = SessionDelta.deserialize(sessionMessage.getBody());
+        synchronized (session) {
+          if (session.getVersion() != delta.getBaseVersion()) {
+            if (session.isReplica()) {
+              if (DEBUG) {
+                log.debug("Replica " + id + " is at version " + session.getVersion() + " but delta is against "
+                    + delta.getBaseVersion() + ", dropping replica.");
+              }
+              localSessions.remove(id);
+              return;
+            }
+            log.warn("Session " + id + " was changed on " + sessionMessage.getSource()
+                + " at the same time it was changed here.");
+          }
+          for (Map.Entry<String, byte[]> op : delta.getOperations().entrySet()) {
+            if (null == op.getValue()) {
+              session.maybeRemoveAttributeInternal(op.getKey());
+            } else {
+              session.maybeSetAttributeInternal(op.getKey(), getAttributeDeserializer(op.getValue()).deserialize());
+            }
+          }
+          session.setAccessedTimeInternal(delta.getThisAccessedTime(), delta.getLastAccessedTime());
+          session.setMaxInactiveInterval(delta.getMaxInactiveInterval());
+          session.setVersion(Math.max(session.getVersion(), delta.getVersion()));
+        }
+      } catch (Throwable t) {
+        log.error(t.getMessage(), t);
       }
     }
-    return deserializer;
   }
 
   /**
-   * A custom <b>ThreadFactory</b> implementation that uses a somewhat meaningful naming scheme to make troubleshooting
-   * easier.
+   * Responsible for serializing user sessions and sending them back to the requestor.
    */
-  protected class DaemonThreadFactory implements ThreadFactory {
+  protected class LoadEventHandler implements Runnable {
 
-    protected String threadPrefix;
-    protected ThreadGroup workersGroup;
-    protected AtomicInteger count = new AtomicInteger(0);
+    protected CloudSessionMessage sessionMessage;
 
-    public DaemonThreadFactory(String groupName, String threadPrefix) {
-      workersGroup = new ThreadGroup(groupName);
-      this.threadPrefix = threadPrefix;
+    public LoadEventHandler(CloudSessionMessage sessionMessage) {
+      this.sessionMessage = sessionMessage;
     }
 
-    public Thread newThread(Runnable r) {
-      Thread t = new Thread(workersGroup, r);
-      t.setDaemon(true);
-      t.setName(threadPrefix + count.incrementAndGet());
-      return t;
+    public void run() {
+      try {
+        if (DEBUG) {
+          log.debug("************************ Load event: " + sessionMessage.toString());
+        }
+        MDC.put("method", "processLoadEvent()");
+        String id = sessionMessage.getId();
+
+        CloudSession session = localSessions.get(id);
+        PassivationLog.Entry passivated = null;
+        if (null == session && null != passivationLog) {
+          if (null != sessionMessage.getCorrelationId()) {
+            // Somebody's using it
+            session = activate(id);
+          } else {
+            // Just a copy for a node that's starting up, which can come straight off the disk
+            passivated = passivationLog.peek(id);
+          }
+        }
+
+        AMQP.BasicProperties props = new AMQP.BasicProperties();
+        props.setContentType(getSessionContentType(session));
+        props.setReplyTo(sourceEventsQueue);
+        props.setType("update");
+        props.setCorrelationId(sessionMessage.getCorrelationId());
+        Map<String, Object> headers = new LinkedHashMap<String, Object>();
+        headers.put("id", sessionMessage.getId());
+        if (null != session) {
+          headers.put("version", String.valueOf(session.getVersion()));
+        } else if (null != passivated) {
+          headers.put("version", String.valueOf(passivated.getVersion()));
+        }
+        props.setHeaders(headers);
+
+        byte[] bytes = new byte[0];
+        if (null != passivated) {
+          props.setContentType(passivated.getContentType());
+          props.setContentEncoding(passivated.getContentEncoding());
+          bytes = passivated.getBytes();
+        } else if (null != session) {
+          if (DEBUG) {
+            log.debug("Serializing session " + (null != session ? session.toString() : "<NULL>"));
+          }
+          SessionSerializer serializer = getSessionSerializer(session);
+          serializer.setSession(session);
+          bytes = encodePayload(props, serializer.serialize());
+          if (DEBUG) {
+            log.debug("Sending message: " + props.toString());
+          }
+        } else {
+          log.warn(" *** WARNING! *** Asked to load a non-local session: " + id);
+        }
+        ChannelPool pool = getChannelPool();
+        Channel channel = pool.acquire(id);
+        try {
+          channel.basicPublish("", sessionMessage.getSource(), props, bytes);
+        } finally {
+          pool.release(id);
+        }
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      }
+      MDC.remove("method");
     }
 
   }
 
   /**
-   * Dispatch incoming message "events" to the various workers.
+   * Streams the sessions this node owns to a node that asked for everything, a chunk at a time. A chunk only goes out
+   * when the other node has credit for it, and it gives a credit back each time it's done installing one, so a node
+   * that's slow to keep up just slows the transfer down.
    */
-  protected class EventListener implements Runnable {
+  protected class BulkSender implements Runnable {
+
+    protected String source;
+    protected String transfer;
+    protected Semaphore credits;
+    protected int seq = 0;
+
+    public BulkSender(String source, String transfer, int credit) {
+      this.source = source;
+      this.transfer = transfer;
+      this.credits = new Semaphore(Math.max(1, credit));
+    }
 
-    Channel channel;
-    QueueingConsumer eventsConsumer;
+    public void credit() {
+      credits.release();
+    }
 
-    public EventListener(String queue) {
+    public void run() {
+      bulkTransfers.put(transfer, this);
+      MDC.put("method", "bulkTransfer()");
+      long start = System.currentTimeMillis();
+      int sent = 0;
       try {
-        channel = getMqConnection().createChannel();
-        eventsConsumer = new QueueingConsumer(channel);
-        channel.basicConsume(queue, true, eventsConsumer);
+        BulkChunk chunk = new BulkChunk();
+        for (String id : ownedIds()) {
+          SessionSnapshot.Record record = toBulkRecord(id);
+          if (null == record) {
+            continue;
+          }
+          chunk.add(record);
+          if (chunk.size() >= bulkChunkSize) {
+            if (!send(chunk, false)) {
+              return;
+            }
+            sent += chunk.getCount();
+            chunk = new BulkChunk();
+          }
+        }
+        // There's always a last one, even if it's empty, so the other side knows we're done
+        if (send(chunk, true)) {
+          sent += chunk.getCount();
+          if (DEBUG) {
+            log.debug("Sent " + sent + " sessions to " + source + " in " + seq + " chunks, "
+                + (System.currentTimeMillis() - start) + "ms");
+          }
+        }
       } catch (IOException e) {
         log.error(e.getMessage(), e);
+      } catch (InterruptedException e) {
+        log.debug("Interrupting " + this.toString() + ": " + e.getMessage());
+      } finally {
+        bulkTransfers.remove(transfer);
+        MDC.remove("method");
       }
     }
 
-    public void run() {
-      while (true) {
-        try {
-          QueueingConsumer.Delivery delivery = eventsConsumer.nextDelivery();
-          MDC.put("method", delivery.getProperties().getType() + ".delivery");
-          Map<String, Object> headers = delivery.getProperties().getHeaders();
-          String source = delivery.getProperties().getReplyTo();
-          if (DEBUG) {
-            log.debug(" ***** INCOMING " + String.format("%s", delivery.getProperties().getType())
-                .toUpperCase() + " [" + source + "]: " + delivery.getProperties().toString());
-          }
-          String id;
-          CloudSessionMessage msg;
-          String attr;
-          CloudSession session;
-          switch (CloudSession.asEvent(delivery.getProperties().getType())) {
-            case TOUCH:
-              id = new String(delivery.getBody());
-              sessions.add(id);
-              if (operationMode.equals(Mode.ONEFORALL) && !source.equals(sourceEventsQueue)) {
-                if (sessions.contains(id)) {
-                  if (DEBUG) {
-                    log.debug("Removing locally-cached copy of " + id);
-                  }
-                  //deleteEvents.add( id );
-                }
-              }
-              break;
-            case DESTROY:
-              id = new String(delivery.getBody());
-              try {
-                workerPool.submit(new DestroyEventHandler(id));
-              } catch (IOException e) {
-                log.error(e.getMessage(), e);
-              }
-              break;
-            case LOAD:
-              id = new String(delivery.getBody());
-              msg = new CloudSessionMessage();
-              msg.setType("load");
-              msg.setSource(source);
-              msg.setId(id);
-              loadEvents.add(msg);
-              break;
-            case UPDATE:
-            case REPLICATE:
-              if (!source.equals(sourceEventsQueue)) {
-                String type = delivery.getProperties().getType();
-                if (DEBUG) {
-                  log.debug(type.toUpperCase() + " from " + source);
-                }
-                msg = new CloudSessionMessage();
-                msg.setType(type);
-                msg.setId(headers.get("id").toString());
-                msg.setBody(delivery.getBody());
-                msg.setSource(source);
-                updateEvents.add(msg);
-              }
-              break;
-            case CLEAR:
-              if (DEBUG) {
-                log.debug("Clearing all sessions.");
-              }
-              localSessions.clear();
-              break;
-            case GETALL:
-              try {
-                workerPool.submit(new GetAllEventHandler(source)).get();
-              } catch (ExecutionException e) {
-                log.error(e.getMessage(), e);
-              }
-              break;
-            case SETATTR:
-              if (!source.equals(sourceEventsQueue)) {
-                id = headers.get("id").toString();
-                attr = headers.get("attribute").toString();
-                session = localSessions.get(id);
-                if (null != session) {
-                  try {
-                    AttributeDeserializer deser = getAttributeDeserializer(delivery.getBody());
-                    Object obj = deser.deserialize();
-                    session.maybeSetAttributeInternal(attr, obj);
-                  } catch (Throwable t) {
-                    log.error(t.getMessage(), t);
-                  }
-                }
-              }
-              break;
-            case DELATTR:
-              if (!source.equals(sourceEventsQueue)) {
-                id = headers.get("id").toString();
-                attr = new String(delivery.getBody());
-                session = localSessions.get(id);
-                if (null != session) {
-                  session.maybeRemoveAttributeInternal(attr);
-                }
-              }
-              break;
-          }
-          MDC.remove("method");
-        } catch (InterruptedException e) {
-          // Only DEBUG these, as they're generated on shutdown
-          log.debug(e.getMessage(), e);
+    protected SessionSnapshot.Record toBulkRecord(String id) throws IOException {
+      CloudSession session = localSessions.get(id);
+      if (operationMode != Mode.REPLICATED) {
+        // Nobody keeps copies of anybody else's sessions in ONEFORALL, so all they need is to know it's here
+        return new SessionSnapshot.Record(id, null, null, (null != session ? session.getVersion() : -1), new byte[0]);
+      }
+      if (null != session) {
+        return (session.isIdle() ? null : toRecord(session));
+      }
+      if (null != passivationLog) {
+        PassivationLog.Entry entry = passivationLog.peek(id);
+        if (null != entry) {
+          return new SessionSnapshot.Record(id, entry.getContentType(), entry.getContentEncoding(),
+              entry.getVersion(), entry.getBytes());
+        }
+      }
+      return null;
+    }
+
+    protected boolean send(BulkChunk chunk, boolean last) throws IOException, InterruptedException {
+      if (!credits.tryAcquire()) {
+        bulkCreditStalls.incrementAndGet();
+        if (!credits.tryAcquire(loadTimeout, TimeUnit.SECONDS)) {
+          log.warn("Giving up on sending sessions to " + source + ", it stopped taking them.");
+          return false;
         }
       }
+      AMQP.BasicProperties props = new AMQP.BasicProperties();
+      props.setContentType("application/octet-stream");
+      props.setReplyTo(sourceEventsQueue);
+      props.setType("bulk");
+      Map<String, Object> headers = new LinkedHashMap<String, Object>();
+      headers.put("transfer", transfer);
+      headers.put("seq", String.valueOf(seq++));
+      headers.put("last", String.valueOf(last));
+      props.setHeaders(headers);
+      getChannelPool().publish(source, "", source, props, chunk.toByteArray());
+      bulkChunksSent.incrementAndGet();
+      bulkSessionsSent.addAndGet(chunk.getCount());
+      return true;
     }
+
   }
 
   /**
-   * Responsible for deserializing user sessions and dispatching them to the waiting response queues, or just keeping a
-   * copy of them as a replica.
+   * Installs one chunk of a bulk transfer, then hands the sender a credit for another. Chunks are installed on the
+   * worker pool, so as many as the sender has credit for are installed at once.
    */
-  protected class UpdateEventHandler implements Runnable {
+  protected class BulkInstaller implements Runnable {
 
-    protected Channel channel;
+    protected String source;
+    protected String contentEncoding;
+    protected Map<String, Object> headers;
+    protected byte[] body;
 
-    public UpdateEventHandler() throws IOException {
-      this.channel = getMqConnection().createChannel();
+    public BulkInstaller(String source, String contentEncoding, Map<String, Object> headers, byte[] body) {
+      this.source = source;
+      this.contentEncoding = contentEncoding;
+      this.headers = headers;
+      this.body = body;
     }
 
     public void run() {
-      while (true) {
-        CloudSessionMessage sessionMessage;
-        try {
-          sessionMessage = updateEvents.take();
-          if (DEBUG) {
-            log.debug("************************ Update event: " + sessionMessage.toString());
-          }
-          MDC.put("method", "processUpdateEvent()");
-          CloudSession session = (CloudSession) manager.createEmptySession();
-          InternalSessionDeserializer deserializer = new InternalSessionDeserializer(session);
-          deserializer.setBytes(sessionMessage.getBody());
-
-          // Use custom classloading so session attributes are preserved
-          // ADAPTED FROM: from org.apache.catalina.session.FileStore.load()
-          Container container = manager.getContainer();
-          Loader loader;
-          ClassLoader classLoader;
-          if (null != container) {
-            loader = container.getLoader();
-            if (null != loader) {
-              classLoader = loader.getClassLoader();
-              deserializer.setClassLoader(classLoader);
-            }
+      String transfer = (null != headers && null != headers.get("transfer") ? headers.get("transfer").toString() : null);
+      boolean last = (null != headers && null != headers.get("last") && "true".equals(headers.get("last").toString()));
+      try {
+        List<SessionSnapshot.Record> records = BulkChunk.read(decodePayload(contentEncoding, body));
+        for (SessionSnapshot.Record record : records) {
+          try {
+            installBulk(record);
+          } catch (IOException e) {
+            log.error(e.getMessage(), e);
           }
+        }
+        bulkChunksReceived.incrementAndGet();
+        bulkSessionsReceived.addAndGet(records.size());
+        if (DEBUG) {
+          log.debug("Installed " + records.size() + " sessions from " + source + (last ? " (last chunk)" : ""));
+        }
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      } finally {
+        if (!last && null != transfer) {
           try {
-            deserializer.deserialize();
-            session.access();
-            String id = session.getId();
-            SessionLoader sessLoader;
-            if (null != (sessLoader = sessionLoaders.remove(id))) {
-              if (DEBUG) {
-                log.debug("Giving deserizlied session to: " + sessLoader.toString());
-              }
-              if (operationMode == Mode.REPLICATED) {
-                session.setReplica(false);
-                localSessions.put(id, session);
-              }
-              sessLoader.getSessions().offer(session);
-            } else if (sessionMessage.getType().equals("replicate")) {
-              if (operationMode == Mode.REPLICATED) {
-                session.setReplica(true);
-              }
-              if (localSessions.containsKey(id)) {
-                localSessions.put(id, session);
-              }
-            }
-            session.endAccess();
+            sendEventTo("credit", source, transfer.getBytes());
           } catch (IOException e) {
             log.error(e.getMessage(), e);
           }
-        } catch (InterruptedException e) {
-          log.debug("Interrupting " + this.toString() + ": " + e.getMessage());
         }
-        MDC.remove("method");
       }
     }
+
   }
 
   /**
-   * Responsible for serializing user sessions and sending them back to the requestor.
+   * Answers another node's repair request with the IDs we own in the buckets it asked about.
    */
-  protected class LoadEventHandler implements Runnable {
+  protected class RepairEventHandler implements Runnable {
 
-    Channel channel;
+    protected String source;
+    protected String transfer;
+    protected String buckets;
 
-    public LoadEventHandler() {
-      try {
-        channel = getMqConnection().createChannel();
-      } catch (IOException e) {
-        log.error(e.getMessage(), e);
-      }
+    public RepairEventHandler(String source, String transfer, String buckets) {
+      this.source = source;
+      this.transfer = transfer;
+      this.buckets = buckets;
     }
 
     public void run() {
-      while (true) {
-        try {
-          CloudSessionMessage sessionMessage = loadEvents.take();
-          if (DEBUG) {
-            log.debug("************************ Load event: " + sessionMessage.toString());
-          }
-          MDC.put("method", "processLoadEvent()");
-          String id = sessionMessage.getId();
-
-          AMQP.BasicProperties props = new AMQP.BasicProperties();
-          props.setContentType("application/octet-stream");
-          props.setReplyTo(sourceEventsQueue);
-          props.setType("update");
-          Map<String, Object> headers = new LinkedHashMap<String, Object>();
-          headers.put("id", sessionMessage.getId());
-          props.setHeaders(headers);
-
-          CloudSession session = localSessions.get(id);
-          byte[] bytes = new byte[0];
-          if (null != session) {
-            if (DEBUG) {
-              log.debug("Serializing session " + (null != session ? session.toString() : "<NULL>"));
-            }
-            SessionSerializer serializer = new InternalSessionSerializer();
-            serializer.setSession(session);
-            bytes = serializer.serialize();
-            if (DEBUG) {
-              log.debug("Sending message: " + props.toString());
-            }
-          } else {
-            log.warn(" *** WARNING! *** Asked to load a non-local session: " + id);
-          }
-          synchronized (channel) {
-            channel.basicPublish("", sessionMessage.getSource(), props, bytes);
+      Set<Integer> wanted = new HashSet<Integer>();
+      for (String b : buckets.split(",")) {
+        wanted.add(Integer.valueOf(b.trim()));
+      }
+      StringBuilder ids = new StringBuilder();
+      for (String id : ownedIds()) {
+        if (wanted.contains(SessionDigest.bucketOf(id, antiEntropyBuckets))) {
+          if (ids.length() > 0) {
+            ids.append('\n');
           }
-        } catch (IOException e) {
-          log.error(e.getMessage(), e);
-        } catch (InterruptedException e) {
-          log.debug("Interrupting " + this.toString() + ": " + e.getMessage());
+          ids.append(id);
         }
-        MDC.remove("method");
       }
-    }
-
-    public void close() {
+      Map<String, Object> headers = new LinkedHashMap<String, Object>();
+      headers.put("transfer", transfer);
       try {
-        channel.close();
+        sendEventTo("owned", source, ids.toString().getBytes(), headers);
       } catch (IOException e) {
         log.error(e.getMessage(), e);
       }
     }
-
   }
 
   /**
-   * Not used at the moment, but is intended for maintenance/status apps that need to know about every session
-   * throughout the cloud.
+   * A repair waiting on every node to say which sessions it owns.
    */
-  protected class GetAllEventHandler implements Runnable {
+  protected class Repair {
 
-    protected String source;
+    String id;
+    Set<String> waiting = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    CountDownLatch done;
 
-    public GetAllEventHandler(String source) {
-      this.source = source;
+    Repair(String id, List<String> nodes) {
+      this.id = id;
+      this.waiting.addAll(nodes);
+      this.done = new CountDownLatch(nodes.size());
     }
 
-    public void run() {
-      for (Map.Entry<String, CloudSession> entry : localSessions.entrySet()) {
-        CloudSessionMessage msg = new CloudSessionMessage();
-        msg.setType("load");
-        msg.setSource(source);
-        msg.setId(entry.getKey());
-        loadEvents.add(msg);
+    void answer(String node, String owned) {
+      if (waiting.remove(node)) {
+        if (owned.length() > 0) {
+          ids.addAll(Arrays.asList(owned.split("\n")));
+        }
+        done.countDown();
       }
     }
 
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return done.await(timeout, unit);
+    }
   }
 
   protected class TouchEventHandler implements Runnable {
@@ -1172,9 +3821,14 @@ public class CloudStore extends StoreBase {
         if (sessions.add(id) && localSessions.containsKey(id)) {
           // This is a new session.
           String qname = String.format(sessionEventsQueuePattern, id);
-          synchronized (mqChannel) {
-            mqChannel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
+          ChannelPool pool = getChannelPool();
+          Channel channel = pool.acquire(id);
+          try {
+            channel.queueBind(sourceEventsQueue, sessionEventsExchange, qname);
+          } finally {
+            pool.release(id);
           }
+          boundSessions.add(id);
         }
       } catch (IOException e) {
         log.error(e.getMessage(), e);
@@ -1182,47 +3836,165 @@ public class CloudStore extends StoreBase {
     }
   }
 
+  /**
+   * Forget destroyed sessions. Only the node a session's queue is bound to unbinds it, on the pooled channel for that
+   * session.
+   */
   protected class DestroyEventHandler implements Runnable {
 
-    protected String id;
-    protected Channel channel;
+    protected String[] ids;
 
-    public DestroyEventHandler(String id) throws IOException {
-      this.id = id;
-      this.channel = getMqConnection().createChannel();
+    public DestroyEventHandler(String... ids) {
+      this.ids = ids;
     }
 
     public void run() {
-      try {
+      for (String id : ids) {
         sessions.remove(id);
-        String qname = String.format(sessionEventsQueuePattern, id);
-        channel.queueUnbind(sourceEventsQueue, sessionEventsExchange, qname);
-      } catch (Throwable t) {
-        log.debug(t.getMessage());
-      } finally {
+        if (!boundSessions.remove(id)) {
+          continue;
+        }
         try {
-          channel.close();
-        } catch (IOException e) {
-          log.error(e.getMessage(), e);
+          String qname = String.format(sessionEventsQueuePattern, id);
+          ChannelPool pool = getChannelPool();
+          Channel channel = pool.acquire(id);
+          try {
+            channel.queueUnbind(sourceEventsQueue, sessionEventsExchange, qname);
+          } finally {
+            pool.release(id);
+          }
+        } catch (Throwable t) {
+          log.debug(t.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Collects new and destroyed session IDs for up to <b>membershipBatchWindow</b> milliseconds, or until there are
+   * <b>membershipBatchSize</b> of them, and sends them out as one "destroy" and one "touch" listing them all. A
+   * session created and destroyed within the same batch only goes out in the "destroy".
+   */
+  protected class MembershipPublisher implements Runnable {
+
+    protected LinkedBlockingQueue<String[]> changes = new LinkedBlockingQueue<String[]>();
+    protected Set<String> touched = new LinkedHashSet<String>();
+    protected Set<String> destroyed = new LinkedHashSet<String>();
+    /**
+     * Guards the two sets. Only held to change or swap them, never while publishing, and a lock rather than a monitor
+     * so a virtual thread waiting on it doesn't pin its carrier.
+     */
+    protected ReentrantLock lock = new ReentrantLock();
+
+    public void add(String type, String id) {
+      changes.add(new String[]{type, id});
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          String[] change = changes.take();
+          long deadline = System.currentTimeMillis() + membershipBatchWindow;
+          int count = 0;
+          while (null != change) {
+            lock.lock();
+            try {
+              apply(change);
+            } finally {
+              lock.unlock();
+            }
+            if (++count >= membershipBatchSize) {
+              break;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            change = (wait > 0 ? changes.poll(wait, TimeUnit.MILLISECONDS) : null);
+          }
+          flush();
+        } catch (InterruptedException e) {
+          log.debug("Interrupting " + this.toString() + ": " + e.getMessage());
+          break;
+        }
+      }
+    }
+
+    /**
+     * Send whatever has been collected so far, including anything not picked up off the queue yet.
+     */
+    public void flush() {
+      Set<String> destroying;
+      Set<String> touching;
+      lock.lock();
+      try {
+        String[] change;
+        while (null != (change = changes.poll())) {
+          apply(change);
+        }
+        destroying = destroyed;
+        touching = touched;
+        destroyed = new LinkedHashSet<String>();
+        touched = new LinkedHashSet<String>();
+      } finally {
+        lock.unlock();
+      }
+      try {
+        if (!destroying.isEmpty()) {
+          sendEvent("destroy", join(destroying).getBytes());
+          membershipBatches.incrementAndGet();
+          membershipChanges.addAndGet(destroying.size());
+        }
+        if (!touching.isEmpty()) {
+          sendEvent("touch", join(touching).getBytes());
+          membershipBatches.incrementAndGet();
+          membershipChanges.addAndGet(touching.size());
+        }
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      }
+    }
+
+    protected void apply(String[] change) {
+      if ("destroy".equals(change[0])) {
+        touched.remove(change[1]);
+        destroyed.add(change[1]);
+      } else {
+        destroyed.remove(change[1]);
+        touched.add(change[1]);
+      }
+    }
+
+    protected String join(Set<String> ids) {
+      StringBuilder buff = new StringBuilder();
+      for (String id : ids) {
+        if (buff.length() > 0) {
+          buff.append('\n');
         }
+        buff.append(id);
       }
+      return buff.toString();
     }
   }
 
   /**
-   * Responsible for pretending to be synchronously loading a user session from wherever the object actually resides.
+   * A load request waiting on its reply. The request goes out on one of the pooled channels with a correlation ID and
+   * the reply comes back through the listener already consuming <b>sourceEventsQueue</b>, so a load doesn't open or
+   * close any channels of its own.
    */
-  protected class SessionLoader implements Runnable {
+  protected class SessionLoader {
 
     String id;
-    Channel channel;
-    CloudSession session;
-    ArrayBlockingQueue<CloudSession> sessions = new ArrayBlockingQueue<CloudSession>(1);
+    String correlationId;
+    volatile CloudSession session;
+    CountDownLatch done = new CountDownLatch(1);
+    AtomicInteger waiters = new AtomicInteger(0);
     long startTime;
 
-    public SessionLoader(String id) throws IOException {
+    public SessionLoader(String id) {
       this.id = id;
-      this.channel = getMqConnection().createChannel();
+      this.correlationId = storeId + "." + loadSequence.incrementAndGet();
+    }
+
+    public String getCorrelationId() {
+      return correlationId;
     }
 
     /**
@@ -1234,10 +4006,15 @@ public class CloudStore extends StoreBase {
       return startTime;
     }
 
+    /**
+     * Wait up to <b>loadTimeout</b> seconds for the reply.
+     *
+     * @return The session or null if it didn't show up in time.
+     */
     public CloudSession getSession() {
       if (null == session) {
         try {
-          session = sessions.poll(loadTimeout, TimeUnit.SECONDS);
+          done.await(loadTimeout, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
           log.error(e.getMessage(), e);
         }
@@ -1245,28 +4022,58 @@ public class CloudStore extends StoreBase {
       return session;
     }
 
-    public ArrayBlockingQueue<CloudSession> getSessions() {
-      return sessions;
+    public void complete(CloudSession session) {
+      if (null != session) {
+        this.session = session;
+      }
+      done.countDown();
     }
 
-    public void run() {
-      startTime = System.currentTimeMillis();
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * Wait on this load alongside whoever started it.
+     *
+     * @return <code>false</code> if there are already <b>maxLoadWaiters</b> waiting.
+     */
+    public boolean join() {
+      if (waiters.incrementAndGet() > maxLoadWaiters) {
+        waiters.decrementAndGet();
+        return false;
+      }
+      return true;
+    }
+
+    public void leave() {
+      waiters.decrementAndGet();
+    }
+
+    /**
+     * Ask whichever node has this session to send it to us.
+     */
+    public void send() {
+      if (0 == startTime) {
+        startTime = System.currentTimeMillis();
+      }
+      pendingLoads.put(correlationId, this);
       AMQP.BasicProperties props = new AMQP.BasicProperties();
       props.setReplyTo(sourceEventsQueue);
       props.setType("load");
+      props.setCorrelationId(correlationId);
       try {
-        channel.basicPublish(sessionEventsExchange, String.format(sessionEventsQueuePattern, id), props,
+        getChannelPool().publish(id, sessionEventsExchange, String.format(sessionEventsQueuePattern, id), props,
             id.getBytes());
       } catch (IOException e) {
         log.debug(e.getMessage());
-      } finally {
-        try {
-          channel.close();
-        } catch (IOException e) {
-          log.error(e.getMessage(), e);
-        }
       }
     }
+
+    @Override
+    public String toString() {
+      return "SessionLoader[id=" + id + ",correlationId=" + correlationId + "]";
+    }
   }
 
 }
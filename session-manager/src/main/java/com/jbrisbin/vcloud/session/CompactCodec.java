@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Low-level encoding shared by {@link CompactSessionSerializer} and {@link CompactSessionDeserializer}. Numbers are
+ * written as (zig-zag) varints and the common JDK types get a one-byte type id instead of a class descriptor. The type
+ * ids are fixed here, so every node running this code agrees on them. Anything else falls back to plain Java
+ * serialization, one value at a time, so object references shared between two different attributes aren't preserved
+ * the way they are when the whole session goes through a single <b>ObjectOutputStream</b>.
+ */
+final class CompactCodec {
+
+  static final byte FORMAT = 1;
+
+  static final byte NULL = 0;
+  static final byte STRING = 1;
+  static final byte INTEGER = 2;
+  static final byte LONG = 3;
+  static final byte TRUE = 4;
+  static final byte FALSE = 5;
+  static final byte DOUBLE = 6;
+  static final byte FLOAT = 7;
+  static final byte SHORT = 8;
+  static final byte BYTE = 9;
+  static final byte CHARACTER = 10;
+  static final byte BYTES = 11;
+  static final byte DATE = 12;
+  static final byte ARRAY_LIST = 13;
+  static final byte HASH_MAP = 14;
+  static final byte LINKED_HASH_MAP = 15;
+  static final byte HASH_SET = 16;
+  static final byte LINKED_HASH_SET = 17;
+  static final byte SERIALIZED = 127;
+
+  private CompactCodec() {
+  }
+
+  static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+    writeVarLong(out, (value << 1) ^ (value >> 63));
+  }
+
+  static long readSignedVarLong(DataInput in) throws IOException {
+    long value = readVarLong(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  static void writeString(DataOutput out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Can this value go into the stream at all? Mirrors what <b>StandardSession</b> skips when it writes itself out.
+   *
+   * @param obj
+   * @return
+   */
+  static boolean isWritable(Object obj) {
+    return (null == obj || obj instanceof Serializable);
+  }
+
+  static void writeValue(DataOutput out, Object obj) throws IOException {
+    if (null == obj) {
+      out.writeByte(NULL);
+      return;
+    }
+    Class<?> type = obj.getClass();
+    if (type == String.class) {
+      out.writeByte(STRING);
+      writeString(out, (String) obj);
+    } else if (type == Integer.class) {
+      out.writeByte(INTEGER);
+      writeSignedVarLong(out, (Integer) obj);
+    } else if (type == Long.class) {
+      out.writeByte(LONG);
+      writeSignedVarLong(out, (Long) obj);
+    } else if (type == Boolean.class) {
+      out.writeByte((Boolean) obj ? TRUE : FALSE);
+    } else if (type == Double.class) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) obj);
+    } else if (type == Float.class) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) obj);
+    } else if (type == Short.class) {
+      out.writeByte(SHORT);
+      out.writeShort((Short) obj);
+    } else if (type == Byte.class) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) obj);
+    } else if (type == Character.class) {
+      out.writeByte(CHARACTER);
+      out.writeChar((Character) obj);
+    } else if (type == byte[].class) {
+      byte[] bytes = (byte[]) obj;
+      out.writeByte(BYTES);
+      writeVarLong(out, bytes.length);
+      out.write(bytes);
+    } else if (type == Date.class) {
+      out.writeByte(DATE);
+      writeSignedVarLong(out, ((Date) obj).getTime());
+    } else if (type == ArrayList.class) {
+      out.writeByte(ARRAY_LIST);
+      writeCollection(out, (Collection) obj);
+    } else if (type == HashSet.class) {
+      out.writeByte(HASH_SET);
+      writeCollection(out, (Collection) obj);
+    } else if (type == LinkedHashSet.class) {
+      out.writeByte(LINKED_HASH_SET);
+      writeCollection(out, (Collection) obj);
+    } else if (type == HashMap.class) {
+      out.writeByte(HASH_MAP);
+      writeMap(out, (Map) obj);
+    } else if (type == LinkedHashMap.class) {
+      out.writeByte(LINKED_HASH_MAP);
+      writeMap(out, (Map) obj);
+    } else if (type == LazyAttribute.class) {
+      // Never deserialized, so the bytes it came in with are still exactly what we'd write
+      byte[] bytes = ((LazyAttribute) obj).getBytes();
+      out.writeByte(SERIALIZED);
+      writeVarLong(out, bytes.length);
+      out.write(bytes);
+    } else {
+      byte[] bytes = javaSerialize(obj);
+      out.writeByte(SERIALIZED);
+      writeVarLong(out, bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  static Object readValue(DataInput in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+    return readValue(in, classLoader, false);
+  }
+
+  /**
+   * @param in
+   * @param classLoader
+   * @param lazy        Hand back a {@link LazyAttribute} instead of deserializing a value that fell back to Java
+   *                    serialization.
+   * @return
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  @SuppressWarnings({"unchecked"})
+  static Object readValue(DataInput in, ClassLoader classLoader, boolean lazy)
+      throws IOException, ClassNotFoundException {
+    byte type = in.readByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INTEGER:
+        return (int) readSignedVarLong(in);
+      case LONG:
+        return readSignedVarLong(in);
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case DOUBLE:
+        return in.readDouble();
+      case FLOAT:
+        return in.readFloat();
+      case SHORT:
+        return in.readShort();
+      case BYTE:
+        return in.readByte();
+      case CHARACTER:
+        return in.readChar();
+      case BYTES:
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return bytes;
+      case DATE:
+        return new Date(readSignedVarLong(in));
+      case ARRAY_LIST: {
+        int size = (int) readVarLong(in);
+        return readCollection(in, classLoader, new ArrayList(size), size);
+      }
+      case HASH_SET: {
+        int size = (int) readVarLong(in);
+        return readCollection(in, classLoader, new HashSet(size * 2), size);
+      }
+      case LINKED_HASH_SET: {
+        int size = (int) readVarLong(in);
+        return readCollection(in, classLoader, new LinkedHashSet(size * 2), size);
+      }
+      case HASH_MAP: {
+        int size = (int) readVarLong(in);
+        return readMap(in, classLoader, new HashMap(size * 2), size);
+      }
+      case LINKED_HASH_MAP: {
+        int size = (int) readVarLong(in);
+        return readMap(in, classLoader, new LinkedHashMap(size * 2), size);
+      }
+      case SERIALIZED:
+        byte[] serialized = new byte[(int) readVarLong(in)];
+        in.readFully(serialized);
+        return (lazy ? new LazyAttribute(serialized, classLoader) : javaDeserialize(serialized, classLoader));
+      default:
+        throw new IOException("Unknown type id in compact session data: " + type);
+    }
+  }
+
+  static byte[] javaSerialize(Object obj) throws IOException {
+    ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+    ObjectOutputStream objectOut = new ObjectOutputStream(bytesOut);
+    objectOut.writeObject(obj);
+    objectOut.flush();
+    objectOut.close();
+    return bytesOut.toByteArray();
+  }
+
+  static Object javaDeserialize(byte[] bytes, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+    ByteArrayInputStream bytesIn = new ByteArrayInputStream(bytes);
+    ObjectInputStream objectIn = (null != classLoader ? new CustomObjectInputStream(bytesIn,
+        classLoader) : new ObjectInputStream(bytesIn));
+    try {
+      return objectIn.readObject();
+    } finally {
+      objectIn.close();
+    }
+  }
+
+  private static void writeCollection(DataOutput out, Collection c) throws IOException {
+    Object[] values = c.toArray();
+    writeVarLong(out, values.length);
+    for (Object value : values) {
+      writeValue(out, value);
+    }
+  }
+
+  @SuppressWarnings({"unchecked"})
+  private static Collection readCollection(DataInput in, ClassLoader classLoader, Collection c, int size)
+      throws IOException, ClassNotFoundException {
+    for (int i = 0; i < size; i++) {
+      c.add(readValue(in, classLoader));
+    }
+    return c;
+  }
+
+  private static void writeMap(DataOutput out, Map m) throws IOException {
+    Object[] entries = m.entrySet().toArray();
+    writeVarLong(out, entries.length);
+    for (Object o : entries) {
+      Map.Entry entry = (Map.Entry) o;
+      writeValue(out, entry.getKey());
+      writeValue(out, entry.getValue());
+    }
+  }
+
+  @SuppressWarnings({"unchecked"})
+  private static Map readMap(DataInput in, ClassLoader classLoader, Map m, int size)
+      throws IOException, ClassNotFoundException {
+    for (int i = 0; i < size; i++) {
+      Object key = readValue(in, classLoader);
+      m.put(key, readValue(in, classLoader));
+    }
+    return m;
+  }
+
+}
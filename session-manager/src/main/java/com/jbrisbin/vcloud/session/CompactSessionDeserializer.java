@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import org.apache.catalina.Session;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a <b>CloudSession</b> written by {@link CompactSessionSerializer}.
+ */
+public class CompactSessionDeserializer implements SessionDeserializer {
+
+  /**
+   * The serialized byte that likely came from a RabbitMQ message.
+   */
+  protected byte[] bytes;
+  /**
+   * Our <b>Session</b> object.
+   */
+  protected CloudSession session = null;
+  /**
+   * The ClassLoader to use for any attribute that had to fall back to Java serialization.
+   */
+  protected ClassLoader classLoader = null;
+  protected Long fingerprint = null;
+  /**
+   * Should attributes that fell back to Java serialization be left as bytes until they're read?
+   */
+  protected boolean lazyAttributes = false;
+
+  public CompactSessionDeserializer(Session session) {
+    if (session instanceof CloudSession) {
+      this.session = (CloudSession) session;
+    } else {
+      throw new IllegalArgumentException("This deserializer can only handle CloudSession objects (and subclasses).");
+    }
+  }
+
+  public byte[] getBytes() {
+    return this.bytes;
+  }
+
+  public void setBytes(byte[] bytes) {
+    this.bytes = bytes;
+    this.fingerprint = null;
+  }
+
+  public void setClassLoader(ClassLoader classLoader) {
+    this.classLoader = classLoader;
+  }
+
+  public boolean isLazyAttributes() {
+    return lazyAttributes;
+  }
+
+  public void setLazyAttributes(boolean lazyAttributes) {
+    this.lazyAttributes = lazyAttributes;
+  }
+
+  public Session getSession() {
+    return this.session;
+  }
+
+  /**
+   * Turn our bytes into a real <b>Session</b> object.
+   *
+   * @return
+   * @throws IOException
+   */
+  public Session deserialize() throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      session.readCompactData(in, classLoader, lazyAttributes);
+    } catch (ClassNotFoundException e) {
+      LoggerFactory.getLogger(getClass()).error(e.getMessage(), e);
+    }
+    in.close();
+    return session;
+  }
+
+  public long getFingerprint() {
+    if (null == fingerprint) {
+      fingerprint = Fingerprint.of(bytes);
+    }
+    return fingerprint;
+  }
+}
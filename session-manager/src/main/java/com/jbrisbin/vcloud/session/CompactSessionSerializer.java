@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import org.apache.catalina.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a <b>CloudSession</b> using {@link CompactCodec} instead of an <b>ObjectOutputStream</b>.
+ */
+public class CompactSessionSerializer implements SessionSerializer {
+
+  /**
+   * The session to serialize.
+   */
+  protected CloudSession session;
+  protected byte[] bytes = null;
+  protected long fingerprint;
+
+  public Session getSession() {
+    return this.session;
+  }
+
+  public void setSession(Session session) {
+    if (session instanceof CloudSession) {
+      this.session = (CloudSession) session;
+    } else {
+      throw new IllegalArgumentException("This serializer can only handle CloudSession objects (and subclasses).");
+    }
+  }
+
+  /**
+   * Serialize the session into a byte array.
+   *
+   * @return
+   * @throws IOException
+   */
+  public byte[] serialize() throws IOException {
+    if (null == bytes) {
+      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytesOut);
+
+      int stableOffset = session.writeCompactData(out);
+
+      out.flush();
+      out.close();
+
+      bytes = bytesOut.toByteArray();
+      fingerprint = Fingerprint.of(bytes, stableOffset, bytes.length - stableOffset, 0);
+    }
+    return bytes;
+  }
+
+  public long getFingerprint() {
+    return fingerprint;
+  }
+}
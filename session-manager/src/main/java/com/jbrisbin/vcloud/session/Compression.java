@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate/inflate for message bodies. Serialized sessions are mostly class names and field names, so even the fastest
+ * compression level shrinks them considerably.
+ */
+public final class Compression {
+
+  /**
+   * Value of the AMQP content-encoding property on a deflated message.
+   */
+  public static final String DEFLATE = "deflate";
+
+  private Compression() {
+  }
+
+  public static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int len = deflater.deflate(buffer);
+        out.write(buffer, 0, len);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public static byte[] inflate(byte[] bytes) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+      byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        int len = inflater.inflate(buffer);
+        if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated deflate payload");
+        }
+        out.write(buffer, 0, len);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException(e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
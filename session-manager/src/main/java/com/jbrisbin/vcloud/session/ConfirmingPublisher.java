@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes messages from its own thread and only considers them delivered once the broker has accepted them. The
+ * client we're built against predates publisher confirms, so this runs its channel in transaction mode and commits
+ * whatever has queued up since the last commit in one go: a successful commit acknowledges the whole batch. When a
+ * commit fails, the channel is replaced and the batch is published again, up to <b>maxAttempts</b> times. Callers
+ * never wait unless they ask to, by calling {@link Publish#await(long, java.util.concurrent.TimeUnit)}.
+ */
+public class ConfirmingPublisher implements Runnable {
+
+  protected Logger log = LoggerFactory.getLogger(getClass());
+  protected Connection connection;
+  protected Channel channel;
+  /**
+   * Messages waiting to go out. This is bounded so a broker outage can't eat the whole heap.
+   */
+  protected LinkedBlockingQueue<Publish> pending;
+  protected int maxBatchSize = 256;
+  protected int maxAttempts = 3;
+  protected AtomicInteger inFlight = new AtomicInteger(0);
+  protected AtomicLong confirmed = new AtomicLong(0);
+  protected AtomicLong failed = new AtomicLong(0);
+  protected AtomicLong confirmLatencyTotal = new AtomicLong(0);
+
+  public ConfirmingPublisher(Connection connection, int capacity) {
+    this.connection = connection;
+    this.pending = new LinkedBlockingQueue<Publish>(capacity);
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * Messages handed to us that the broker hasn't acknowledged yet.
+   *
+   * @return
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public long getConfirmed() {
+    return confirmed.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Average time (in milliseconds) from handing a message to us until the broker acknowledged it.
+   *
+   * @return
+   */
+  public long getAverageConfirmLatency() {
+    long count = confirmed.get();
+    return (count > 0 ? confirmLatencyTotal.get() / count : 0);
+  }
+
+  /**
+   * Queue a message to go to each of the given exchange/routing key pairs. Gives up and returns <code>null</code> if
+   * the buffer stays full longer than <b>timeout</b> milliseconds.
+   *
+   * @param targets Alternating exchange names and routing keys.
+   * @param props
+   * @param body
+   * @param timeout
+   * @return
+   * @throws InterruptedException
+   */
+  public Publish publish(String[] targets, AMQP.BasicProperties props, byte[] body, long timeout)
+      throws InterruptedException {
+    Publish p = new Publish(targets, props, body);
+    inFlight.incrementAndGet();
+    if (!pending.offer(p, timeout, TimeUnit.MILLISECONDS)) {
+      inFlight.decrementAndGet();
+      failed.incrementAndGet();
+      return null;
+    }
+    return p;
+  }
+
+  public void run() {
+    List<Publish> batch = new ArrayList<Publish>(maxBatchSize);
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(pending.take());
+        pending.drainTo(batch, maxBatchSize - 1);
+        send(batch);
+        batch.clear();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // Anybody still waiting on these isn't going to see them confirmed
+    pending.drainTo(batch);
+    for (Publish p : batch) {
+      // Interrupted while retrying, some of the batch may have already given up
+      if (!p.isDone()) {
+        p.done(false);
+      }
+    }
+    close();
+  }
+
+  protected void send(List<Publish> batch) throws InterruptedException {
+    List<Publish> unconfirmed = new ArrayList<Publish>(batch);
+    while (!unconfirmed.isEmpty()) {
+      try {
+        Channel ch = getChannel();
+        for (Publish p : unconfirmed) {
+          for (int i = 0; i < p.targets.length; i += 2) {
+            ch.basicPublish(p.targets[i], p.targets[i + 1], p.props, p.body);
+          }
+        }
+        ch.txCommit();
+        long now = System.currentTimeMillis();
+        for (Publish p : unconfirmed) {
+          confirmLatencyTotal.addAndGet(now - p.created);
+          confirmed.incrementAndGet();
+          p.done(true);
+        }
+        return;
+      } catch (Throwable t) {
+        log.warn("Publish of " + unconfirmed.size() + " message(s) not confirmed: " + t.getMessage());
+        close();
+        List<Publish> retry = new ArrayList<Publish>(unconfirmed.size());
+        for (Publish p : unconfirmed) {
+          // Counted whether or not we even got a channel, so a broker that's down can't keep us retrying forever
+          if (++p.attempts < maxAttempts) {
+            retry.add(p);
+          } else {
+            failed.incrementAndGet();
+            p.done(false);
+          }
+        }
+        unconfirmed = retry;
+        if (!unconfirmed.isEmpty()) {
+          // Give the broker (or our connection) a moment before trying again
+          Thread.sleep(100);
+        }
+      }
+    }
+  }
+
+  protected Channel getChannel() throws IOException {
+    if (null == channel || !channel.isOpen()) {
+      channel = connection.createChannel();
+      channel.txSelect();
+    }
+    return channel;
+  }
+
+  protected void close() {
+    if (null != channel) {
+      try {
+        channel.close();
+      } catch (Throwable t) {
+        log.debug(t.getMessage());
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * One message on its way to the broker.
+   */
+  public class Publish {
+
+    final String[] targets;
+    final AMQP.BasicProperties props;
+    final byte[] body;
+    final long created = System.currentTimeMillis();
+    final CountDownLatch latch = new CountDownLatch(1);
+    int attempts = 0;
+    volatile boolean confirmed = false;
+
+    Publish(String[] targets, AMQP.BasicProperties props, byte[] body) {
+      this.targets = targets;
+      this.props = props;
+      this.body = body;
+    }
+
+    void done(boolean confirmed) {
+      this.confirmed = confirmed;
+      inFlight.decrementAndGet();
+      latch.countDown();
+    }
+
+    public boolean isDone() {
+      return latch.getCount() == 0;
+    }
+
+    public boolean isConfirmed() {
+      return confirmed;
+    }
+
+    /**
+     * Wait for the broker to acknowledge this message.
+     *
+     * @param timeout
+     * @param unit
+     * @return <code>true</code> if the broker has it, <code>false</code> if it failed or we ran out of time.
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return latch.await(timeout, unit) && confirmed;
+    }
+  }
+
+}
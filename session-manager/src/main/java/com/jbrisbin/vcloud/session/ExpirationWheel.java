@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel of session IDs, filed under the tick their session is expected to expire on. Each call to
+ * {@link #advance(long)} hands back only the IDs filed under the ticks that have gone by since the last call, so
+ * checking for expired sessions doesn't have to look at every session there is.
+ * <p/>
+ * Nothing is moved when a session is accessed. Whoever checks a session that came due reschedules it if it turns out
+ * to have been used in the meantime. A session expiring further out than the wheel goes around simply comes up early
+ * and is filed again. The same ID may be filed more than once.
+ */
+public class ExpirationWheel {
+
+  protected long tickMillis;
+  protected ConcurrentLinkedQueue<String>[] slots;
+  protected int mask;
+  /**
+   * The last tick that's been handed back by {@link #advance(long)}.
+   */
+  protected volatile long lastTick;
+
+  /**
+   * @param tickMillis How many milliseconds each slot covers.
+   * @param slotCount  How many slots, rounded up to a power of two.
+   */
+  @SuppressWarnings({"unchecked"})
+  public ExpirationWheel(long tickMillis, int slotCount) {
+    this.tickMillis = Math.max(1, tickMillis);
+    int size = 1;
+    while (size < slotCount) {
+      size <<= 1;
+    }
+    this.slots = new ConcurrentLinkedQueue[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new ConcurrentLinkedQueue<String>();
+    }
+    this.mask = size - 1;
+    this.lastTick = System.currentTimeMillis() / this.tickMillis;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  /**
+   * File this ID under the tick it's expected to expire on. Anything due at a tick that's already gone by is filed
+   * under the next one to be handed back.
+   *
+   * @param id
+   * @param expiresAt
+   */
+  public void schedule(String id, long expiresAt) {
+    long tick = expiresAt / tickMillis;
+    long next = lastTick + 1;
+    if (tick < next) {
+      tick = next;
+    } else if (tick - next > mask) {
+      // Further out than we go around, so look at it again when we get to the last slot before wrapping
+      tick = next + mask;
+    }
+    slots[(int) (tick & mask)].offer(id);
+  }
+
+  /**
+   * Hand back everything filed under the ticks between the last call and <b>now</b>. Only one thread should be calling
+   * this.
+   *
+   * @param now
+   * @return
+   */
+  public List<String> advance(long now) {
+    List<String> due = new ArrayList<String>();
+    long nowTick = now / tickMillis;
+    long from = lastTick + 1;
+    // No point going around more than once
+    if (nowTick - from > mask) {
+      from = nowTick - mask;
+    }
+    if (nowTick > lastTick) {
+      // Move on first so anything scheduled while we're draining goes into a slot we haven't gotten to yet
+      lastTick = nowTick;
+    }
+    for (long tick = from; tick <= nowTick; tick++) {
+      ConcurrentLinkedQueue<String> slot = slots[(int) (tick & mask)];
+      String id;
+      while (null != (id = slot.poll())) {
+        due.add(id);
+      }
+    }
+    return due;
+  }
+
+  /**
+   * How many IDs are filed. This walks every slot, so it's for JMX and not much else.
+   *
+   * @return
+   */
+  public int size() {
+    int size = 0;
+    for (ConcurrentLinkedQueue<String> slot : slots) {
+      size += slot.size();
+    }
+    return size;
+  }
+
+}
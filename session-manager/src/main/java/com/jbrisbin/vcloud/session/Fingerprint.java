@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+/**
+ * xxHash64 over a byte array. It's only used to tell whether two serialized sessions are the same, so it trades the
+ * cryptographic strength of MD5 for speed.
+ */
+public final class Fingerprint {
+
+  private static final long P1 = 0x9E3779B185EBCA87L;
+  private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long P3 = 0x165667B19E3779F9L;
+  private static final long P4 = 0x85EBCA77C2B2AE63L;
+  private static final long P5 = 0x27D4EB2F165667C5L;
+
+  private Fingerprint() {
+  }
+
+  public static long of(byte[] bytes) {
+    return of(bytes, 0, bytes.length, 0);
+  }
+
+  public static long of(byte[] bytes, int offset, int length, long seed) {
+    int end = offset + length;
+    long h;
+    if (length >= 32) {
+      long v1 = seed + P1 + P2;
+      long v2 = seed + P2;
+      long v3 = seed;
+      long v4 = seed - P1;
+      int limit = end - 32;
+      do {
+        v1 = round(v1, getLong(bytes, offset));
+        v2 = round(v2, getLong(bytes, offset + 8));
+        v3 = round(v3, getLong(bytes, offset + 16));
+        v4 = round(v4, getLong(bytes, offset + 24));
+        offset += 32;
+      } while (offset <= limit);
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = mergeRound(h, v1);
+      h = mergeRound(h, v2);
+      h = mergeRound(h, v3);
+      h = mergeRound(h, v4);
+    } else {
+      h = seed + P5;
+    }
+    h += length;
+
+    while (offset + 8 <= end) {
+      h ^= round(0, getLong(bytes, offset));
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+      offset += 8;
+    }
+    if (offset + 4 <= end) {
+      h ^= (getInt(bytes, offset) & 0xFFFFFFFFL) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+      offset += 4;
+    }
+    while (offset < end) {
+      h ^= (bytes[offset] & 0xFF) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+      offset++;
+    }
+
+    h ^= h >>> 33;
+    h *= P2;
+    h ^= h >>> 29;
+    h *= P3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * P2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * P1;
+  }
+
+  private static long mergeRound(long acc, long val) {
+    acc ^= round(0, val);
+    return acc * P1 + P4;
+  }
+
+  private static long getLong(byte[] b, int i) {
+    return ((long) b[i] & 0xFF)
+        | (((long) b[i + 1] & 0xFF) << 8)
+        | (((long) b[i + 2] & 0xFF) << 16)
+        | (((long) b[i + 3] & 0xFF) << 24)
+        | (((long) b[i + 4] & 0xFF) << 32)
+        | (((long) b[i + 5] & 0xFF) << 40)
+        | (((long) b[i + 6] & 0xFF) << 48)
+        | (((long) b[i + 7] & 0xFF) << 56);
+  }
+
+  private static int getInt(byte[] b, int i) {
+    return (b[i] & 0xFF)
+        | ((b[i + 1] & 0xFF) << 8)
+        | ((b[i + 2] & 0xFF) << 16)
+        | ((b[i + 3] & 0xFF) << 24);
+  }
+
+}
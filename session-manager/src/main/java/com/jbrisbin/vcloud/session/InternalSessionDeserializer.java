@@ -24,9 +24,6 @@ import org.apache.juli.logging.LogFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Re-constitute a user <b>StandardSession</b> subclass from a byte stream.
@@ -48,7 +45,7 @@ public class InternalSessionDeserializer implements SessionDeserializer {
    * your session that aren't in the server's classpath.
    */
   protected ClassLoader classLoader = null;
-  protected String md5sum;
+  protected Long fingerprint = null;
 
   public InternalSessionDeserializer(Session session) {
     this.session = session;
@@ -60,13 +57,7 @@ public class InternalSessionDeserializer implements SessionDeserializer {
 
   public void setBytes(byte[] bytes) {
     this.bytes = bytes;
-    try {
-      MessageDigest digest = MessageDigest.getInstance("MD5");
-      digest.update(bytes);
-      md5sum = new BigInteger(1, digest.digest()).toString(16);
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-    }
+    this.fingerprint = null;
   }
 
   public void setClassLoader(ClassLoader classLoader) {
@@ -99,7 +90,10 @@ public class InternalSessionDeserializer implements SessionDeserializer {
     return session;
   }
 
-  public String getMD5Sum() {
-    return md5sum;
+  public long getFingerprint() {
+    if (null == fingerprint) {
+      fingerprint = Fingerprint.of(bytes);
+    }
+    return fingerprint;
   }
 }
@@ -22,9 +22,7 @@ import org.apache.catalina.session.StandardSession;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.ObjectStreamConstants;
 
 /**
  * Convert's our <b>StandardSession</b> subclass into a byte array for inclusion in an MQ message.
@@ -37,7 +35,7 @@ public class InternalSessionSerializer implements SessionSerializer {
    */
   protected Session session;
   protected byte[] bytes = null;
-  protected String md5sum;
+  protected long fingerprint;
 
   public Session getSession() {
     return this.session;
@@ -70,18 +68,57 @@ public class InternalSessionSerializer implements SessionSerializer {
       bytesOut.close();
 
       bytes = bytesOut.toByteArray();
-      try {
-        MessageDigest digest = MessageDigest.getInstance("MD5");
-        digest.update(bytes);
-        md5sum = new BigInteger(1, digest.digest()).toString(16);
-      } catch (NoSuchAlgorithmException e) {
-        e.printStackTrace();
-      }
+      fingerprint = fingerprint(bytes);
     }
     return bytes;
   }
 
-  public String getMD5Sum() {
-    return md5sum;
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * <b>writeObjectData</b> writes the creation and access timestamps, timeout and flags first, then the id and the
+   * attributes. Only hash from the id onward (the timeout is folded into the seed) so just touching the
+   * session doesn't change its fingerprint.
+   *
+   * @param bytes
+   * @return
+   */
+  protected long fingerprint(byte[] bytes) {
+    long seed = session.getMaxInactiveInterval();
+    int offset = indexOfId(bytes, session.getIdInternal());
+    return Fingerprint.of(bytes, offset, bytes.length - offset, seed);
+  }
+
+  /**
+   * Find where the id was written as a TC_STRING. Class descriptors earlier in the stream write their names without
+   * that marker, so the first match is the id itself.
+   *
+   * @param bytes
+   * @param id
+   * @return
+   */
+  protected int indexOfId(byte[] bytes, String id) {
+    if (null == id || id.length() > 0xFFFF) {
+      return 0;
+    }
+    byte[] idBytes = id.getBytes();
+    int len = idBytes.length;
+    outer:
+    for (int i = 0; i + 3 + len <= bytes.length; i++) {
+      if (bytes[i] != ObjectStreamConstants.TC_STRING
+          || bytes[i + 1] != (byte) (len >>> 8)
+          || bytes[i + 2] != (byte) len) {
+        continue;
+      }
+      for (int j = 0; j < len; j++) {
+        if (bytes[i + 3 + j] != idBytes[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return 0;
   }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Stands in for a session attribute that arrived serialized and hasn't been asked for yet. {@link CloudSession} swaps
+ * the real object in the first time the attribute is read, and until then the compact codec can send the original
+ * bytes back out without ever having deserialized them.
+ */
+final class LazyAttribute {
+
+  private final byte[] bytes;
+  private final AttributeDeserializer deserializer = new InternalAttributeDeserializer();
+
+  LazyAttribute(byte[] bytes, ClassLoader classLoader) {
+    this.bytes = bytes;
+    deserializer.setBytes(bytes);
+    deserializer.setClassLoader(classLoader);
+  }
+
+  /**
+   * The attribute as Java serialization wrote it.
+   *
+   * @return
+   */
+  byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Deserialize the attribute. The deserializer hangs on to the result, so this only does the work once.
+   *
+   * @return The attribute or <code>null</code> if it couldn't be read.
+   */
+  synchronized Object get() {
+    try {
+      return deserializer.deserialize();
+    } catch (IOException e) {
+      LoggerFactory.getLogger(getClass()).error(e.getMessage(), e);
+    } catch (ClassNotFoundException e) {
+      LoggerFactory.getLogger(getClass()).error(e.getMessage(), e);
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies of sessions owned by other nodes, kept around in ONEFORALL mode so the next request for one doesn't have to
+ * go back over the network. The owner announces a new version every time its session changes and any copy older than
+ * that is dropped. Announcements for sessions we're in the middle of loading are remembered too, so a reply that was
+ * already out of date when it arrived doesn't get cached. The least recently used copies go first when it fills up.
+ */
+public class NearCache {
+
+  protected int maxSize;
+  protected Map<String, Entry> entries;
+  protected AtomicLong hits = new AtomicLong(0);
+  protected AtomicLong misses = new AtomicLong(0);
+  protected AtomicLong invalidations = new AtomicLong(0);
+
+  public NearCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > NearCache.this.maxSize;
+      }
+    };
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized CloudSession get(String id) {
+    Entry entry = entries.get(id);
+    if (null == entry || null == entry.session) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.session;
+  }
+
+  /**
+   * Cache a copy we just got from its owner, unless we've already heard of a newer version.
+   *
+   * @param session
+   * @return <code>false</code> if the copy was already out of date.
+   */
+  public synchronized boolean put(CloudSession session) {
+    Entry entry = entries.get(session.getId());
+    if (null == entry) {
+      entries.put(session.getId(), new Entry(session, session.getVersion()));
+      return true;
+    }
+    if (session.getVersion() < entry.version) {
+      entry.session = null;
+      return false;
+    }
+    entry.session = session;
+    entry.version = session.getVersion();
+    return true;
+  }
+
+  /**
+   * The owner says this session is now at <b>version</b>.
+   *
+   * @param id
+   * @param version
+   * @param remember Remember the version even if we don't have a copy, because one is on its way.
+   */
+  public synchronized void invalidate(String id, long version, boolean remember) {
+    Entry entry = entries.get(id);
+    if (null == entry) {
+      if (remember) {
+        entries.put(id, new Entry(null, version));
+      }
+      return;
+    }
+    if (null != entry.session && entry.session.getVersion() < version) {
+      entry.session = null;
+      invalidations.incrementAndGet();
+    }
+    entry.version = Math.max(entry.version, version);
+  }
+
+  public synchronized void remove(String id) {
+    if (null != entries.remove(id)) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  protected static class Entry {
+
+    CloudSession session;
+    long version;
+
+    Entry(CloudSession session, long version) {
+      this.session = session;
+      this.version = version;
+    }
+  }
+
+}
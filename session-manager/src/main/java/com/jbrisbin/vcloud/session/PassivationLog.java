@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serialized sessions written out of the heap to disk. Records are only ever appended, to memory-mapped segment files
+ * of a fixed size; an in-memory index says where the latest copy of each session is. Taking a session back out just
+ * drops it from the index, leaving a dead record behind. {@link #compact(double)} copies what's still live out of a
+ * segment that's mostly dead and deletes the file.
+ * <p/>
+ * Nothing here is meant to survive a restart. Whatever is in the directory when the log is opened is deleted.
+ */
+public class PassivationLog {
+
+  static final String SUFFIX = ".seg";
+
+  protected File directory;
+  protected int segmentSize;
+  protected List<Segment> segments = new ArrayList<Segment>();
+  protected Segment active;
+  protected int nextSegment = 0;
+  protected ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+  protected long compactions = 0;
+
+  /**
+   * @param directory   Where to keep the segment files. Created if need be.
+   * @param segmentSize Size of each segment file, which is also the biggest record that will fit.
+   * @throws IOException
+   */
+  public PassivationLog(File directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create passivation directory " + directory);
+    }
+    File[] leftovers = directory.listFiles();
+    if (null != leftovers) {
+      for (File f : leftovers) {
+        if (f.getName().endsWith(SUFFIX)) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * A snapshot of the IDs written out, in no particular order.
+   *
+   * @return
+   */
+  public String[] ids() {
+    return index.keySet().toArray(new String[0]);
+  }
+
+  public boolean contains(String id) {
+    return index.containsKey(id);
+  }
+
+  /**
+   * When the session we've got written out would expire, or 0 if we don't have it.
+   *
+   * @param id
+   * @return
+   */
+  public long getExpiresAt(String id) {
+    Entry entry = index.get(id);
+    return (null != entry ? entry.expiresAt : 0);
+  }
+
+  /**
+   * Bytes of disk (and address space) taken by segment files.
+   *
+   * @return
+   */
+  public synchronized long getMappedBytes() {
+    return (long) segments.size() * segmentSize;
+  }
+
+  /**
+   * Bytes of records that are still in the index.
+   *
+   * @return
+   */
+  public synchronized long getLiveBytes() {
+    long live = 0;
+    for (Segment segment : segments) {
+      live += segment.live;
+    }
+    return live;
+  }
+
+  public synchronized long getCompactions() {
+    return compactions;
+  }
+
+  /**
+   * Write a session out, replacing whatever copy of it was there before.
+   *
+   * @param id
+   * @param version
+   * @param contentType
+   * @param contentEncoding
+   * @param expiresAt
+   * @param bytes
+   * @return <code>false</code> if it's bigger than a segment.
+   * @throws IOException
+   */
+  public boolean append(String id, long version, String contentType, String contentEncoding, long expiresAt,
+                        byte[] bytes) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length + 128);
+    DataOutputStream out = new DataOutputStream(buffer);
+    out.writeInt(0);
+    out.writeUTF(id);
+    out.writeUTF(null != contentType ? contentType : "");
+    out.writeUTF(null != contentEncoding ? contentEncoding : "");
+    out.writeLong(version);
+    out.writeLong(expiresAt);
+    out.writeInt(bytes.length);
+    int header = out.size();
+    out.write(bytes);
+    out.flush();
+    byte[] record = buffer.toByteArray();
+    ByteBuffer.wrap(record).putInt(0, record.length - 4);
+    if (record.length > segmentSize) {
+      return false;
+    }
+
+    synchronized (this) {
+      if (null == active || segmentSize - active.position < record.length) {
+        roll();
+      }
+      Entry entry = new Entry(active, active.position, record.length, header, version, contentType, contentEncoding,
+          expiresAt);
+      ByteBuffer buf = active.buffer.duplicate();
+      buf.position(active.position);
+      buf.put(record);
+      active.position += record.length;
+      active.live += record.length;
+      release(index.put(id, entry));
+    }
+    return true;
+  }
+
+  /**
+   * Take a session back out of the log.
+   *
+   * @param id
+   * @return The record with its bytes read in, or <code>null</code> if we don't have it.
+   */
+  public synchronized Entry take(String id) {
+    Entry entry = index.remove(id);
+    if (null == entry) {
+      return null;
+    }
+    entry.bytes = read(entry);
+    release(entry);
+    return entry;
+  }
+
+  /**
+   * Read a session without taking it out of the log.
+   *
+   * @param id
+   * @return A copy of the record with its bytes read in, or <code>null</code> if we don't have it.
+   */
+  public synchronized Entry peek(String id) {
+    Entry entry = index.get(id);
+    if (null == entry) {
+      return null;
+    }
+    Entry copy = new Entry(entry.segment, entry.offset, entry.length, entry.header, entry.version, entry.contentType,
+        entry.contentEncoding, entry.expiresAt);
+    copy.accessedAt = entry.accessedAt;
+    copy.bytes = read(entry);
+    return copy;
+  }
+
+  /**
+   * Forget a session without reading it.
+   *
+   * @param id
+   * @return <code>true</code> if we had it.
+   */
+  public synchronized boolean discard(String id) {
+    Entry entry = index.remove(id);
+    release(entry);
+    return (null != entry);
+  }
+
+  /**
+   * Note that the session was used on another node, without reading it back in.
+   *
+   * @param id
+   * @param accessedAt
+   * @param expiresAt
+   * @return <code>true</code> if we have it.
+   */
+  public synchronized boolean touch(String id, long accessedAt, long expiresAt) {
+    Entry entry = index.get(id);
+    if (null == entry) {
+      return false;
+    }
+    if (accessedAt > entry.accessedAt) {
+      entry.accessedAt = accessedAt;
+      entry.expiresAt = expiresAt;
+    }
+    return true;
+  }
+
+  public synchronized void clear() {
+    index.clear();
+    for (Segment segment : segments) {
+      segment.live = 0;
+    }
+    dropEmptySegments();
+  }
+
+  /**
+   * Copy whatever is still live out of the emptiest full segment, if less than <b>threshold</b> of it is live, and
+   * delete it. Only one segment is done per call, and the lock is only held for one record at a time so sessions can
+   * keep coming and going.
+   *
+   * @param threshold
+   * @return <code>true</code> if a segment was compacted.
+   * @throws IOException
+   */
+  public boolean compact(double threshold) throws IOException {
+    Segment victim = null;
+    synchronized (this) {
+      dropEmptySegments();
+      for (Segment segment : segments) {
+        if (segment != active && segment.live < segmentSize * threshold
+            && (null == victim || segment.live < victim.live)) {
+          victim = segment;
+        }
+      }
+    }
+    if (null == victim) {
+      return false;
+    }
+    for (Map.Entry<String, Entry> e : index.entrySet()) {
+      Entry entry = e.getValue();
+      if (entry.segment != victim) {
+        continue;
+      }
+      synchronized (this) {
+        if (index.get(e.getKey()) != entry) {
+          // Taken or replaced in the meantime
+          continue;
+        }
+        append(e.getKey(), entry.version, entry.contentType, entry.contentEncoding, entry.expiresAt, read(entry));
+        index.get(e.getKey()).accessedAt = entry.accessedAt;
+      }
+    }
+    synchronized (this) {
+      compactions++;
+      dropEmptySegments();
+    }
+    return true;
+  }
+
+  /**
+   * Delete every segment file.
+   */
+  public synchronized void close() {
+    index.clear();
+    for (Segment segment : segments) {
+      segment.delete();
+    }
+    segments.clear();
+    active = null;
+  }
+
+  protected void roll() throws IOException {
+    File f = new File(directory, String.format("%08d", nextSegment++) + SUFFIX);
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.setLength(segmentSize);
+      active = new Segment(f, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+    } finally {
+      // The mapping stays good after the file's closed
+      raf.close();
+    }
+    segments.add(active);
+  }
+
+  protected void release(Entry entry) {
+    if (null != entry) {
+      entry.segment.live -= entry.length;
+    }
+  }
+
+  protected void dropEmptySegments() {
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      Segment segment = segments.get(i);
+      if (segment != active && segment.live == 0) {
+        segment.delete();
+        segments.remove(i);
+      }
+    }
+  }
+
+  protected byte[] read(Entry entry) {
+    byte[] bytes = new byte[entry.length - entry.header];
+    ByteBuffer buf = entry.segment.buffer.duplicate();
+    buf.position(entry.offset + entry.header);
+    buf.get(bytes);
+    return bytes;
+  }
+
+  protected static class Segment {
+
+    File file;
+    MappedByteBuffer buffer;
+    int position = 0;
+    long live = 0;
+
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    void delete() {
+      // There's no unmapping a buffer before Java 7, so the pages go when it's garbage collected
+      buffer = null;
+      file.delete();
+    }
+  }
+
+  /**
+   * Where one session is written. Only an entry that's been taken out with {@link PassivationLog#take(String)} has its
+   * bytes filled in.
+   */
+  public static class Entry {
+
+    Segment segment;
+    int offset;
+    int length;
+    int header;
+    long version;
+    String contentType;
+    String contentEncoding;
+    long expiresAt;
+    long accessedAt = 0;
+    byte[] bytes;
+
+    Entry(Segment segment, int offset, int length, int header, long version, String contentType,
+          String contentEncoding, long expiresAt) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.header = header;
+      this.version = version;
+      this.contentType = contentType;
+      this.contentEncoding = contentEncoding;
+      this.expiresAt = expiresAt;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getContentEncoding() {
+      return contentEncoding;
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Last access on another node that we heard about since the session was written out, or 0 if none.
+     *
+     * @return
+     */
+    public long getAccessedAt() {
+      return accessedAt;
+    }
+  }
+
+}
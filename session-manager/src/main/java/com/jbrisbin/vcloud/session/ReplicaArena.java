@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serialized copies of sessions owned by other nodes, kept outside the Java heap. Memory is reserved from the OS in
+ * slabs of direct <b>ByteBuffer</b>s. Each slab is cut into blocks of a single size class (powers of two from 512
+ * bytes to 64K), and each size class keeps a free list of its blocks. A copy bigger than the largest block is spread
+ * over several. Slabs are never given back; a freed block just goes back on its free list, so memory reserved for one
+ * size class can sit unused while another runs short. The fragmentation gauge shows how much of that is going on.
+ */
+public class ReplicaArena {
+
+  static final int SLAB_SIZE = 1024 * 1024;
+  static final int MIN_BLOCK_SHIFT = 9;
+  static final int MAX_BLOCK_SHIFT = 16;
+  static final int MAX_BLOCK = 1 << MAX_BLOCK_SHIFT;
+
+  protected long maxBytes;
+  protected List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+  /**
+   * Free blocks for each size class, as the slab's index above the low 32 bits and the offset in them.
+   */
+  protected ArrayDeque<Long>[] freeLists;
+  protected ConcurrentHashMap<String, Replica> replicas = new ConcurrentHashMap<String, Replica>();
+  protected long reservedBytes = 0;
+  protected long allocatedBytes = 0;
+  protected long storedBytes = 0;
+  protected long rejected = 0;
+
+  /**
+   * @param maxBytes The most this arena will reserve, in bytes.
+   */
+  @SuppressWarnings({"unchecked"})
+  public ReplicaArena(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.freeLists = new ArrayDeque[MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1];
+    for (int i = 0; i < freeLists.length; i++) {
+      freeLists[i] = new ArrayDeque<Long>();
+    }
+  }
+
+  /**
+   * Bytes reserved from the OS so far.
+   *
+   * @return
+   */
+  public synchronized long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * Bytes of blocks currently handed out.
+   *
+   * @return
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Bytes of session data actually stored.
+   *
+   * @return
+   */
+  public synchronized long getStoredBytes() {
+    return storedBytes;
+  }
+
+  /**
+   * Fraction of the reserved memory not holding session data, whether it's sitting on a free list or is the unused
+   * end of a block.
+   *
+   * @return
+   */
+  public synchronized double getFragmentation() {
+    return (reservedBytes > 0 ? (reservedBytes - storedBytes) / (double) reservedBytes : 0);
+  }
+
+  /**
+   * Copies turned away because the arena was full.
+   *
+   * @return
+   */
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  public int size() {
+    return replicas.size();
+  }
+
+  public boolean contains(String id) {
+    return replicas.containsKey(id);
+  }
+
+  /**
+   * Version of the copy we're holding or -1 if we don't have one.
+   *
+   * @param id
+   * @return
+   */
+  public long getVersion(String id) {
+    Replica replica = replicas.get(id);
+    return (null != replica ? replica.version : -1);
+  }
+
+  /**
+   * Store a copy of a session, replacing any older one.
+   *
+   * @param id
+   * @param version
+   * @param contentType
+   * @param contentEncoding
+   * @param expiresAt
+   * @param bytes
+   * @return <code>false</code> if there wasn't room for it. The old copy is dropped either way.
+   */
+  public synchronized boolean put(String id, long version, String contentType, String contentEncoding,
+                                  long expiresAt, byte[] bytes) {
+    Replica old = replicas.remove(id);
+    if (null != old) {
+      release(old);
+    }
+    Replica replica = new Replica(version, contentType, contentEncoding, expiresAt, bytes.length);
+    replica.blocks = allocate(bytes.length);
+    if (null == replica.blocks) {
+      rejected++;
+      return false;
+    }
+    write(replica, bytes);
+    storedBytes += bytes.length;
+    replicas.put(id, replica);
+    return true;
+  }
+
+  /**
+   * Take a copy out of the arena, freeing the memory it used.
+   *
+   * @param id
+   * @return The copy or <code>null</code> if we don't have one.
+   */
+  public synchronized Replica remove(String id) {
+    Replica replica = replicas.remove(id);
+    if (null == replica) {
+      return null;
+    }
+    replica.bytes = read(replica);
+    release(replica);
+    return replica;
+  }
+
+  /**
+   * Throw away a copy without reading it.
+   *
+   * @param id
+   * @return <code>true</code> if we had one.
+   */
+  public synchronized boolean discard(String id) {
+    Replica replica = replicas.remove(id);
+    if (null == replica) {
+      return false;
+    }
+    release(replica);
+    return true;
+  }
+
+  /**
+   * When the copy we're holding would expire, or 0 if we don't have one.
+   *
+   * @param id
+   * @return
+   */
+  public long getExpiresAt(String id) {
+    Replica replica = replicas.get(id);
+    return (null != replica ? replica.expiresAt : 0);
+  }
+
+  /**
+   * Note that the session was used on its owner, without reading the copy.
+   *
+   * @param id
+   * @param accessedAt
+   * @param expiresAt
+   * @return <code>true</code> if we have a copy.
+   */
+  public synchronized boolean touch(String id, long accessedAt, long expiresAt) {
+    Replica replica = replicas.get(id);
+    if (null == replica) {
+      return false;
+    }
+    if (accessedAt > replica.accessedAt) {
+      replica.accessedAt = accessedAt;
+      replica.expiresAt = expiresAt;
+    }
+    return true;
+  }
+
+  public synchronized void clear() {
+    for (Replica replica : replicas.values()) {
+      release(replica);
+    }
+    replicas.clear();
+  }
+
+  protected void release(Replica replica) {
+    for (long block : replica.blocks) {
+      int shift = (int) (block >>> 58);
+      freeLists[shift - MIN_BLOCK_SHIFT].push(block & ~(0x3FL << 58));
+      allocatedBytes -= (1 << shift);
+    }
+    storedBytes -= replica.length;
+    replica.blocks = new long[0];
+    replica.length = 0;
+  }
+
+  /**
+   * Find blocks to hold <b>length</b> bytes: as many of the largest as it takes, then the smallest that fits the rest.
+   * Each block's size class is kept in its top 6 bits.
+   */
+  protected long[] allocate(int length) {
+    int full = length / MAX_BLOCK;
+    int rest = length % MAX_BLOCK;
+    long[] blocks = new long[full + (rest > 0 || length == 0 ? 1 : 0)];
+    for (int i = 0; i < blocks.length; i++) {
+      int shift = (i < full ? MAX_BLOCK_SHIFT : shiftFor(rest));
+      Long block = takeBlock(shift);
+      if (null == block) {
+        // Out of room, so give back whatever we got
+        for (int j = 0; j < i; j++) {
+          int s = (int) (blocks[j] >>> 58);
+          freeLists[s - MIN_BLOCK_SHIFT].push(blocks[j] & ~(0x3FL << 58));
+          allocatedBytes -= (1 << s);
+        }
+        return null;
+      }
+      blocks[i] = block | ((long) shift << 58);
+      allocatedBytes += (1 << shift);
+    }
+    return blocks;
+  }
+
+  protected Long takeBlock(int shift) {
+    ArrayDeque<Long> free = freeLists[shift - MIN_BLOCK_SHIFT];
+    if (free.isEmpty()) {
+      if (reservedBytes + SLAB_SIZE > maxBytes) {
+        return null;
+      }
+      ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+      long index = slabs.size();
+      slabs.add(slab);
+      reservedBytes += SLAB_SIZE;
+      for (int offset = SLAB_SIZE - (1 << shift); offset >= 0; offset -= (1 << shift)) {
+        free.push((index << 32) | offset);
+      }
+    }
+    return free.pop();
+  }
+
+  protected int shiftFor(int length) {
+    int shift = MIN_BLOCK_SHIFT;
+    while ((1 << shift) < length) {
+      shift++;
+    }
+    return shift;
+  }
+
+  protected void write(Replica replica, byte[] bytes) {
+    int position = 0;
+    for (long block : replica.blocks) {
+      ByteBuffer slab = slabs.get((int) ((block >>> 32) & 0x3FFFFFF)).duplicate();
+      slab.position((int) block);
+      int len = Math.min(1 << (int) (block >>> 58), bytes.length - position);
+      slab.put(bytes, position, len);
+      position += len;
+    }
+  }
+
+  protected byte[] read(Replica replica) {
+    byte[] bytes = new byte[replica.length];
+    int position = 0;
+    for (long block : replica.blocks) {
+      ByteBuffer slab = slabs.get((int) ((block >>> 32) & 0x3FFFFFF)).duplicate();
+      slab.position((int) block);
+      int len = Math.min(1 << (int) (block >>> 58), bytes.length - position);
+      slab.get(bytes, position, len);
+      position += len;
+    }
+    return bytes;
+  }
+
+  /**
+   * One stored copy. Only a copy that's been taken out with {@link ReplicaArena#remove(String)} has its bytes filled
+   * in.
+   */
+  public static class Replica {
+
+    long version;
+    String contentType;
+    String contentEncoding;
+    long expiresAt;
+    long accessedAt = 0;
+    int length;
+    long[] blocks;
+    byte[] bytes;
+
+    Replica(long version, String contentType, String contentEncoding, long expiresAt, int length) {
+      this.version = version;
+      this.contentType = contentType;
+      this.contentEncoding = contentEncoding;
+      this.expiresAt = expiresAt;
+      this.length = length;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getContentEncoding() {
+      return contentEncoding;
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Last access on the owner that we heard about since the copy was stored, or 0 if none.
+     *
+     * @return
+     */
+    public long getAccessedAt() {
+      return accessedAt;
+    }
+  }
+
+}
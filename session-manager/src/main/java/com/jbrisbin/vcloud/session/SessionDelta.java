@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The changes made to a session during a request: the attributes that were set (as already-serialized bytes) or
+ * removed, plus the timestamps a replica needs to keep its expiration in line with the original. A delta only applies to
+ * a replica sitting at <b>baseVersion</b>.
+ */
+public class SessionDelta {
+
+  static final byte FORMAT = 1;
+  static final byte SET = 1;
+  static final byte REMOVE = 2;
+
+  private long baseVersion;
+  private long version;
+  private long thisAccessedTime;
+  private long lastAccessedTime;
+  private int maxInactiveInterval;
+  /**
+   * Attribute name to serialized value. A <code>null</code> value means the attribute was removed.
+   */
+  private Map<String, byte[]> operations = new LinkedHashMap<String, byte[]>();
+
+  public SessionDelta() {
+  }
+
+  public SessionDelta(long baseVersion, long version) {
+    this.baseVersion = baseVersion;
+    this.version = version;
+  }
+
+  public long getBaseVersion() {
+    return baseVersion;
+  }
+
+  public void setBaseVersion(long baseVersion) {
+    this.baseVersion = baseVersion;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  public long getThisAccessedTime() {
+    return thisAccessedTime;
+  }
+
+  public void setThisAccessedTime(long thisAccessedTime) {
+    this.thisAccessedTime = thisAccessedTime;
+  }
+
+  public long getLastAccessedTime() {
+    return lastAccessedTime;
+  }
+
+  public void setLastAccessedTime(long lastAccessedTime) {
+    this.lastAccessedTime = lastAccessedTime;
+  }
+
+  public int getMaxInactiveInterval() {
+    return maxInactiveInterval;
+  }
+
+  public void setMaxInactiveInterval(int maxInactiveInterval) {
+    this.maxInactiveInterval = maxInactiveInterval;
+  }
+
+  public Map<String, byte[]> getOperations() {
+    return operations;
+  }
+
+  public void setAttribute(String name, byte[] bytes) {
+    operations.put(name, bytes);
+  }
+
+  public void removeAttribute(String name) {
+    operations.put(name, null);
+  }
+
+  public boolean isEmpty() {
+    return operations.isEmpty();
+  }
+
+  public byte[] serialize() throws IOException {
+    ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytesOut);
+    out.writeByte(FORMAT);
+    out.writeLong(baseVersion);
+    out.writeLong(version);
+    out.writeLong(thisAccessedTime);
+    out.writeLong(lastAccessedTime);
+    out.writeInt(maxInactiveInterval);
+    out.writeInt(operations.size());
+    for (Map.Entry<String, byte[]> op : operations.entrySet()) {
+      byte[] bytes = op.getValue();
+      if (null == bytes) {
+        out.writeByte(REMOVE);
+        out.writeUTF(op.getKey());
+      } else {
+        out.writeByte(SET);
+        out.writeUTF(op.getKey());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+    out.flush();
+    out.close();
+    return bytesOut.toByteArray();
+  }
+
+  public static SessionDelta deserialize(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    byte format = in.readByte();
+    if (format != FORMAT) {
+      throw new IOException("Unknown session delta format: " + format);
+    }
+    SessionDelta delta = new SessionDelta(in.readLong(), in.readLong());
+    delta.setThisAccessedTime(in.readLong());
+    delta.setLastAccessedTime(in.readLong());
+    delta.setMaxInactiveInterval(in.readInt());
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      byte op = in.readByte();
+      String name = in.readUTF();
+      if (op == SET) {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        delta.setAttribute(name, value);
+      } else {
+        delta.removeAttribute(name);
+      }
+    }
+    in.close();
+    return delta;
+  }
+
+}
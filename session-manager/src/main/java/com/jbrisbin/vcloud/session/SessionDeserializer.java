@@ -31,9 +31,11 @@ public interface SessionDeserializer {
 
   public void setBytes(byte[] bytes);
 
+  public void setClassLoader(ClassLoader classLoader);
+
   public Session getSession();
 
   public Session deserialize() throws IOException;
 
-  public String getMD5Sum();
+  public long getFingerprint();
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compact summary of a set of session IDs: the IDs are split into buckets by hash, and each bucket is summed up as
+ * the XOR of its IDs' 64-bit hashes. Since every session is owned by one node, XORing together the digests of every
+ * node's own sessions gives the digest of the whole cloud, which can be checked against the digest of the IDs a node
+ * thinks are out there. Only the buckets that don't match need to be looked at more closely.
+ */
+public class SessionDigest {
+
+  protected long[] buckets;
+  protected long receivedAt = System.currentTimeMillis();
+
+  public SessionDigest(int bucketCount) {
+    this.buckets = new long[bucketCount];
+  }
+
+  public SessionDigest(long[] buckets) {
+    this.buckets = buckets;
+  }
+
+  public static SessionDigest of(Iterable<String> ids, int bucketCount) {
+    SessionDigest digest = new SessionDigest(bucketCount);
+    for (String id : ids) {
+      digest.add(id);
+    }
+    return digest;
+  }
+
+  public static SessionDigest fromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long[] buckets = new long[bytes.length / 8];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = buffer.getLong();
+    }
+    return new SessionDigest(buckets);
+  }
+
+  public static long hash(String id) {
+    // FNV-1a, then mixed so neighboring IDs land far apart
+    long h = 0xCBF29CE484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      h ^= id.charAt(i);
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public int getBucketCount() {
+    return buckets.length;
+  }
+
+  public long getBucket(int bucket) {
+    return buckets[bucket];
+  }
+
+  public long getReceivedAt() {
+    return receivedAt;
+  }
+
+  public static int bucketOf(String id, int bucketCount) {
+    return bucketOf(hash(id), bucketCount);
+  }
+
+  protected static int bucketOf(long hash, int bucketCount) {
+    return (int) ((hash >>> 1) % bucketCount);
+  }
+
+  public void add(String id) {
+    long h = hash(id);
+    buckets[bucketOf(h, buckets.length)] ^= h;
+  }
+
+  /**
+   * Fold another digest into this one.
+   *
+   * @param other
+   */
+  public void merge(SessionDigest other) {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] ^= other.buckets[i];
+    }
+  }
+
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(buckets.length * 8);
+    for (long bucket : buckets) {
+      buffer.putLong(bucket);
+    }
+    return buffer.array();
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The set of every session ID in the cloud. Tomcat's session IDs are uppercase hex of a fixed length, so rather than
+ * keeping a <b>String</b> and a skip list node for each, IDs of that shape are packed into longs (16 hex digits to a
+ * long) and kept in open-addressing hash tables. The tables are split into stripes, each with its own lock, so
+ * threads working on different IDs rarely wait on each other. Anything else, like an ID with a jvmRoute on the end,
+ * goes in an ordinary concurrent set off to the side.
+ */
+public class SessionIdIndex {
+
+  private static final int STRIPES = 64;
+  private static final byte EMPTY = 0;
+  private static final byte FULL = 1;
+  private static final byte REMOVED = 2;
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * How many hex digits an ID has to have to be packed.
+   */
+  protected final int idLength;
+  /**
+   * How many longs each packed ID takes.
+   */
+  protected final int words;
+  protected final Stripe[] stripes = new Stripe[STRIPES];
+  protected final Set<String> overflow = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * @param idLength Number of hex digits in the session IDs this index packs, twice the <b>Manager</b>'s
+   *                 <code>sessionIdLength</code>.
+   */
+  public SessionIdIndex(int idLength) {
+    this.idLength = idLength;
+    this.words = Math.max(1, (idLength + 15) / 16);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  public int getIdLength() {
+    return idLength;
+  }
+
+  public boolean add(String id) {
+    long[] key = encode(id);
+    if (null == key) {
+      return overflow.add(id);
+    }
+    int hash = hash(key);
+    return stripeFor(hash).add(key, hash);
+  }
+
+  public boolean remove(String id) {
+    long[] key = encode(id);
+    if (null == key) {
+      return overflow.remove(id);
+    }
+    int hash = hash(key);
+    return stripeFor(hash).remove(key, hash);
+  }
+
+  public boolean contains(String id) {
+    long[] key = encode(id);
+    if (null == key) {
+      return overflow.contains(id);
+    }
+    int hash = hash(key);
+    return stripeFor(hash).contains(key, hash);
+  }
+
+  public int size() {
+    int size = overflow.size();
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  public void clear() {
+    overflow.clear();
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  /**
+   * A snapshot of every ID in the index, in no particular order.
+   *
+   * @return
+   */
+  public String[] toArray() {
+    List<String> ids = new ArrayList<String>(size() + 16);
+    for (Stripe stripe : stripes) {
+      stripe.addTo(ids);
+    }
+    ids.addAll(overflow);
+    return ids.toArray(new String[ids.size()]);
+  }
+
+  @Override
+  public String toString() {
+    return "SessionIdIndex[size=" + size() + "]";
+  }
+
+  /**
+   * Pack an ID into longs, or return <code>null</code> if it isn't uppercase hex of the right length.
+   *
+   * @param id
+   * @return
+   */
+  protected long[] encode(String id) {
+    if (null == id || id.length() != idLength) {
+      return null;
+    }
+    long[] key = new long[words];
+    for (int i = 0; i < idLength; i++) {
+      char c = id.charAt(i);
+      int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0';
+      } else if (c >= 'A' && c <= 'F') {
+        digit = c - 'A' + 10;
+      } else {
+        return null;
+      }
+      key[i >> 4] = (key[i >> 4] << 4) | digit;
+    }
+    return key;
+  }
+
+  protected String decode(long[] keys, int offset) {
+    char[] chars = new char[idLength];
+    for (int w = 0; w < words; w++) {
+      int digits = Math.min(16, idLength - (w << 4));
+      long word = keys[offset + w];
+      for (int i = digits - 1; i >= 0; i--) {
+        chars[(w << 4) + i] = HEX[(int) (word & 0xF)];
+        word >>>= 4;
+      }
+    }
+    return new String(chars);
+  }
+
+  protected int hash(long[] key) {
+    long h = 0;
+    for (long word : key) {
+      h = (h ^ word) * 0x9E3779B97F4A7C15L;
+    }
+    h ^= h >>> 32;
+    h *= 0xC2B2AE3D27D4EB4FL;
+    h ^= h >>> 29;
+    return (int) h;
+  }
+
+  protected Stripe stripeFor(int hash) {
+    return stripes[(hash >>> 26) & (STRIPES - 1)];
+  }
+
+  /**
+   * One open-addressing table with linear probing. Removed entries leave a marker behind until the next resize so
+   * probes for other keys don't stop short.
+   */
+  protected class Stripe {
+
+    long[] keys;
+    byte[] states;
+    int size;
+    /**
+     * Slots that aren't empty, counting removed markers.
+     */
+    int used;
+
+    Stripe() {
+      allocate(16);
+    }
+
+    void allocate(int capacity) {
+      keys = new long[capacity * words];
+      states = new byte[capacity];
+      size = 0;
+      used = 0;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void clear() {
+      allocate(16);
+    }
+
+    synchronized boolean contains(long[] key, int hash) {
+      return find(key, hash) >= 0;
+    }
+
+    synchronized boolean add(long[] key, int hash) {
+      if (find(key, hash) >= 0) {
+        return false;
+      }
+      if ((used + 1) * 4 > states.length * 3) {
+        // Grow if it's actually full, otherwise just clear out the removed markers
+        resize(size * 2 > states.length ? states.length * 2 : states.length);
+      }
+      insert(key, 0, hash);
+      size++;
+      return true;
+    }
+
+    synchronized boolean remove(long[] key, int hash) {
+      int slot = find(key, hash);
+      if (slot < 0) {
+        return false;
+      }
+      states[slot] = REMOVED;
+      size--;
+      return true;
+    }
+
+    synchronized void addTo(List<String> ids) {
+      for (int slot = 0; slot < states.length; slot++) {
+        if (states[slot] == FULL) {
+          ids.add(decode(keys, slot * words));
+        }
+      }
+    }
+
+    int find(long[] key, int hash) {
+      int mask = states.length - 1;
+      int slot = hash & mask;
+      while (states[slot] != EMPTY) {
+        if (states[slot] == FULL && matches(key, slot)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    boolean matches(long[] key, int slot) {
+      int offset = slot * words;
+      for (int w = 0; w < words; w++) {
+        if (keys[offset + w] != key[w]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Put a key in the first free slot. The caller has already made sure it isn't there and that there's room.
+     */
+    void insert(long[] key, int keyOffset, int hash) {
+      int mask = states.length - 1;
+      int slot = hash & mask;
+      while (states[slot] == FULL) {
+        slot = (slot + 1) & mask;
+      }
+      if (states[slot] == EMPTY) {
+        used++;
+      }
+      states[slot] = FULL;
+      System.arraycopy(key, keyOffset, keys, slot * words, words);
+    }
+
+    void resize(int capacity) {
+      long[] oldKeys = keys;
+      byte[] oldStates = states;
+      keys = new long[capacity * words];
+      states = new byte[capacity];
+      used = 0;
+      long[] key = new long[words];
+      for (int slot = 0; slot < oldStates.length; slot++) {
+        if (oldStates[slot] == FULL) {
+          System.arraycopy(oldKeys, slot * words, key, 0, words);
+          insert(key, 0, hash(key));
+        }
+      }
+    }
+  }
+
+}
@@ -33,5 +33,11 @@ public interface SessionSerializer {
 
   public byte[] serialize() throws IOException;
 
-  public String getMD5Sum();
+  /**
+   * A fast hash of the serialized session that leaves out the access timestamps, so a session nobody changed hashes
+   * the same from one request to the next.
+   *
+   * @return
+   */
+  public long getFingerprint();
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The sessions a node owned when it stopped, written to one file so it can pick them back up when it starts again
+ * instead of handing every one of them off through the broker. Each record is marked as it starts, and the file ends
+ * with an end marker, the number of records, and a CRC32 of everything before it. It's written to a temporary file
+ * and renamed, so there's either a whole snapshot or none at all.
+ */
+public class SessionSnapshot {
+
+  static final int MAGIC = 0x56435331;
+
+  protected File file;
+
+  public SessionSnapshot(File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public boolean exists() {
+    return file.isFile();
+  }
+
+  /**
+   * Write the records out in the order they're given, waiting on each one in turn, so they can be serialized in
+   * parallel while they're written one after the other. A record that comes back <code>null</code> is left out, but
+   * one that failed fails the whole snapshot.
+   *
+   * @param records
+   * @return How many records were written.
+   * @throws IOException
+   */
+  public int write(List<Future<Record>> records) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    CRC32 crc = new CRC32();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new CheckedOutputStream(new FileOutputStream(tmp), crc), 64 * 1024));
+    int written = 0;
+    try {
+      out.writeInt(MAGIC);
+      for (Future<Record> future : records) {
+        Record record;
+        try {
+          record = future.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Couldn't serialize a session for the snapshot: " + e.getCause());
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while writing snapshot");
+        }
+        if (null == record) {
+          continue;
+        }
+        out.writeByte(1);
+        out.writeUTF(record.id);
+        out.writeUTF(null != record.contentType ? record.contentType : "");
+        out.writeUTF(null != record.contentEncoding ? record.contentEncoding : "");
+        out.writeLong(record.version);
+        out.writeInt(record.bytes.length);
+        out.write(record.bytes);
+        written++;
+      }
+      out.writeByte(0);
+      out.writeInt(written);
+      out.flush();
+      out.writeLong(crc.getValue());
+    } finally {
+      out.close();
+    }
+    if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+      throw new IOException("Can't move snapshot into place at " + file);
+    }
+    return written;
+  }
+
+  /**
+   * Map the snapshot in and read its records back.
+   *
+   * @return
+   * @throws IOException If the file is damaged.
+   */
+  public List<Record> read() throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (size < 16 || size > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot " + file + " has a bad size: " + size);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int length = (int) size - 8;
+      CRC32 crc = new CRC32();
+      byte[] chunk = new byte[64 * 1024];
+      ByteBuffer data = buffer.duplicate();
+      while (data.position() < length) {
+        int n = Math.min(chunk.length, length - data.position());
+        data.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+      if (crc.getValue() != buffer.getLong(length)) {
+        throw new IOException("Snapshot " + file + " is damaged");
+      }
+
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException(file + " isn't a session snapshot");
+      }
+      List<Record> records = new ArrayList<Record>();
+      while (buffer.get() == 1) {
+        Record record = new Record();
+        record.id = readUTF(buffer);
+        record.contentType = readUTF(buffer);
+        record.contentEncoding = readUTF(buffer);
+        if ("".equals(record.contentEncoding)) {
+          record.contentEncoding = null;
+        }
+        record.version = buffer.getLong();
+        record.bytes = new byte[buffer.getInt()];
+        buffer.get(record.bytes);
+        records.add(record);
+      }
+      if (buffer.getInt() != records.size()) {
+        throw new IOException("Snapshot " + file + " is missing records");
+      }
+      return records;
+    } finally {
+      in.close();
+    }
+  }
+
+  public boolean delete() {
+    return file.delete();
+  }
+
+  protected String readUTF(ByteBuffer buffer) throws IOException {
+    byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    // Session IDs and content types are plain ASCII, which modified UTF-8 leaves alone
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * One session as it was written.
+   */
+  public static class Record {
+
+    String id;
+    String contentType;
+    String contentEncoding;
+    long version;
+    byte[] bytes;
+
+    public Record() {
+    }
+
+    public Record(String id, String contentType, String contentEncoding, long version, byte[] bytes) {
+      this.id = id;
+      this.contentType = contentType;
+      this.contentEncoding = contentEncoding;
+      this.version = version;
+      this.bytes = bytes;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getContentEncoding() {
+      return contentEncoding;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+  }
+
+}
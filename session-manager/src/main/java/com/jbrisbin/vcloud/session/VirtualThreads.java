@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, on a JVM that has them (Java 21 and up). They're looked up by reflection so the store still builds
+ * for and runs on older JVMs, which just keep using platform threads.
+ */
+public class VirtualThreads {
+
+  static final Method ofVirtual;
+  static final Method name;
+  static final Method unstarted;
+  static final Method newThreadPerTaskExecutor;
+
+  static {
+    Method of = null;
+    Method nm = null;
+    Method un = null;
+    Method perTask = null;
+    try {
+      of = Thread.class.getMethod("ofVirtual");
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      nm = builder.getMethod("name", String.class);
+      un = builder.getMethod("unstarted", Runnable.class);
+      perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      // On 19 and 20 these are there but throw unless preview features are turned on, so try them out
+      un.invoke(nm.invoke(of.invoke(null), "probe"), new Runnable() {
+        public void run() {
+        }
+      });
+    } catch (Throwable t) {
+      of = null;
+    }
+    ofVirtual = of;
+    name = nm;
+    unstarted = un;
+    newThreadPerTaskExecutor = perTask;
+  }
+
+  public static boolean isSupported() {
+    return null != ofVirtual;
+  }
+
+  /**
+   * Create a virtual thread that hasn't been started yet.
+   *
+   * @param threadName
+   * @param r
+   * @return
+   */
+  public static Thread newThread(String threadName, Runnable r) {
+    try {
+      Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+      return (Thread) unstarted.invoke(builder, r);
+    } catch (Exception e) {
+      throw new IllegalStateException("Can't create a virtual thread: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * An executor that runs each task on a new thread from <b>factory</b>, rather than pooling them, since virtual threads
+   * are cheap to create.
+   *
+   * @param factory
+   * @return
+   */
+  public static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+    try {
+      return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+    } catch (Exception e) {
+      throw new IllegalStateException("Can't create a thread-per-task executor: " + e.getMessage(), e);
+    }
+  }
+
+}
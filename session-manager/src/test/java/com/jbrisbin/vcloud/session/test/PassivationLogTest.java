@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session.test;
+
+import com.jbrisbin.vcloud.session.PassivationLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link PassivationLog} through enough appends, discards and replacements to fill several small segments, then
+ * compacts it and checks that every live session reads back the way it was last written.
+ *
+ * @author J. Brisbin <jon@jbrisbin.com>
+ */
+public class PassivationLogTest {
+
+  static final int SEGMENT_SIZE = 4096;
+  static final double THRESHOLD = 0.5;
+
+  File directory;
+  PassivationLog log;
+  Random rand = new Random(11);
+  Map<String, Written> written = new HashMap<String, Written>();
+  long version = 0;
+
+  static class Written {
+    long version;
+    long expiresAt;
+    byte[] bytes;
+  }
+
+  @Before
+  public void open() throws IOException {
+    directory = File.createTempFile("passivation", "");
+    directory.delete();
+    log = new PassivationLog(directory, SEGMENT_SIZE);
+  }
+
+  @After
+  public void close() {
+    log.close();
+    File[] files = directory.listFiles();
+    if (null != files) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  String idFor(int i) {
+    return String.format("%032X", i);
+  }
+
+  void write(String id) throws IOException {
+    Written w = new Written();
+    w.version = ++version;
+    w.expiresAt = 1000000L + rand.nextInt(1000000);
+    w.bytes = new byte[100 + rand.nextInt(300)];
+    rand.nextBytes(w.bytes);
+    assertTrue(log.append(id, w.version, "application/x-java-serialized-object", null, w.expiresAt, w.bytes));
+    written.put(id, w);
+  }
+
+  void discard(String id) {
+    assertEquals(written.remove(id) != null, log.discard(id));
+  }
+
+  void verify() {
+    assertEquals(written.size(), log.size());
+    for (Map.Entry<String, Written> e : written.entrySet()) {
+      String id = e.getKey();
+      Written w = e.getValue();
+      PassivationLog.Entry entry = log.peek(id);
+      assertNotNull(entry);
+      assertArrayEquals(id, w.bytes, entry.getBytes());
+      assertEquals(id, w.version, entry.getVersion());
+      assertEquals(id, w.expiresAt, log.getExpiresAt(id));
+      assertEquals("application/x-java-serialized-object", entry.getContentType());
+    }
+  }
+
+  List<String> segmentFiles() {
+    List<String> names = new ArrayList<String>();
+    for (File f : directory.listFiles()) {
+      if (f.getName().endsWith(".seg")) {
+        names.add(f.getName());
+      }
+    }
+    return names;
+  }
+
+  int compactAll() throws IOException {
+    int runs = 0;
+    while (log.compact(THRESHOLD)) {
+      if (++runs > 1000) {
+        fail("compact() never settled");
+      }
+      verify();
+    }
+    return runs;
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    int ids = 300;
+    for (int i = 0; i < ids; i++) {
+      write(idFor(i));
+    }
+    // Replace some and discard others so every segment ends up with a mix of live and dead records
+    for (int i = 0; i < 2000; i++) {
+      String id = idFor(rand.nextInt(ids));
+      if (rand.nextInt(3) == 0) {
+        discard(id);
+      } else {
+        write(id);
+      }
+    }
+    verify();
+
+    List<String> before = segmentFiles();
+    assertTrue("Expected several segments, got " + before.size(), before.size() > 3);
+    assertEquals(log.getMappedBytes(), (long) before.size() * SEGMENT_SIZE);
+    long liveBefore = log.getLiveBytes();
+
+    assertTrue(compactAll() > 0);
+    verify();
+    assertEquals(liveBefore, log.getLiveBytes());
+
+    List<String> after = segmentFiles();
+    assertEquals(log.getMappedBytes(), (long) after.size() * SEGMENT_SIZE);
+    assertTrue(after.size() < before.size());
+    // Everything that's left but the segment being written to is at least half live
+    assertTrue(log.getLiveBytes() >= (after.size() - 1) * SEGMENT_SIZE * THRESHOLD);
+  }
+
+  @Test
+  public void testEmptiedSegmentsAreDeleted() throws IOException {
+    int ids = 200;
+    for (int i = 0; i < ids; i++) {
+      write(idFor(i));
+    }
+    List<String> first = segmentFiles();
+    assertTrue(first.size() > 3);
+
+    // Rewrite the back half so the segments they were first written to only hold dead copies
+    for (int i = ids / 2; i < ids; i++) {
+      write(idFor(i));
+    }
+    // And drop the front half outright
+    for (int i = 0; i < ids / 2; i++) {
+      discard(idFor(i));
+    }
+    verify();
+    compactAll();
+    verify();
+
+    List<String> after = segmentFiles();
+    for (String name : first) {
+      assertFalse(name + " should have been deleted", after.contains(name));
+    }
+    assertEquals(log.getMappedBytes(), (long) after.size() * SEGMENT_SIZE);
+
+    // With nothing left at all, only the segment being written to stays around
+    for (int i = ids / 2; i < ids; i++) {
+      discard(idFor(i));
+    }
+    compactAll();
+    assertEquals(0, log.size());
+    assertEquals(0, log.getLiveBytes());
+    assertEquals(1, segmentFiles().size());
+  }
+
+}
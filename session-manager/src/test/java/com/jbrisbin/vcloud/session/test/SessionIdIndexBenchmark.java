@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session.test;
+
+import com.jbrisbin.vcloud.session.SessionIdIndex;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Compares {@link SessionIdIndex} against the <b>ConcurrentSkipListSet</b> it replaced, for heap footprint and for
+ * add/contains/remove throughput. Run it by hand with a good-sized heap:
+ * <pre>
+ *   java -Xmx2g -cp ... com.jbrisbin.vcloud.session.test.SessionIdIndexBenchmark [ids] [threads]
+ * </pre>
+ */
+public class SessionIdIndexBenchmark {
+
+  static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  interface IdSet {
+    boolean add(String id);
+
+    boolean contains(String id);
+
+    boolean remove(String id);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+    int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+    String[] ids = generateIds(count, 32);
+    System.out.println("Generated " + count + " session IDs, using " + threads + " threads");
+
+    for (int round = 0; round < 2; round++) {
+      // The first round is just to warm up the JIT
+      boolean report = (round == 1);
+
+      final ConcurrentSkipListSet<String> skipList = new ConcurrentSkipListSet<String>();
+      run("ConcurrentSkipListSet", new IdSet() {
+        public boolean add(String id) {
+          return skipList.add(id);
+        }
+
+        public boolean contains(String id) {
+          return skipList.contains(id);
+        }
+
+        public boolean remove(String id) {
+          return skipList.remove(id);
+        }
+      }, ids, threads, report);
+
+      final SessionIdIndex index = new SessionIdIndex(32);
+      run("SessionIdIndex", new IdSet() {
+        public boolean add(String id) {
+          return index.add(id);
+        }
+
+        public boolean contains(String id) {
+          return index.contains(id);
+        }
+
+        public boolean remove(String id) {
+          return index.remove(id);
+        }
+      }, ids, threads, report);
+    }
+  }
+
+  static void run(String name, IdSet set, String[] ids, int threads, boolean report) throws Exception {
+    long before = usedMemory();
+    long addTime = timed(set, ids, threads, 0);
+    long after = usedMemory();
+    long containsTime = timed(set, ids, threads, 1);
+    long removeTime = timed(set, ids, threads, 2);
+    if (report) {
+      System.out.println(String.format("%-22s %8.1f bytes/id  add %6.2f M/s  contains %6.2f M/s  remove %6.2f M/s",
+          name,
+          (after - before) / (double) ids.length,
+          rate(ids.length, addTime),
+          rate(ids.length, containsTime),
+          rate(ids.length, removeTime)));
+    }
+  }
+
+  /**
+   * Split the IDs among the threads and time one kind of operation over all of them.
+   */
+  static long timed(final IdSet set, final String[] ids, int threads, final int op) throws Exception {
+    Thread[] workers = new Thread[threads];
+    final int chunk = (ids.length + threads - 1) / threads;
+    for (int t = 0; t < threads; t++) {
+      final int from = t * chunk;
+      final int to = Math.min(ids.length, from + chunk);
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          int hits = 0;
+          for (int i = from; i < to; i++) {
+            switch (op) {
+              case 0:
+                // A fresh copy, like an ID read off the wire, so what the set hangs on to counts against it
+                hits += (set.add(new String(ids[i])) ? 1 : 0);
+                break;
+              case 1:
+                hits += (set.contains(ids[i]) ? 1 : 0);
+                break;
+              default:
+                hits += (set.remove(ids[i]) ? 1 : 0);
+            }
+          }
+          if (hits != to - from) {
+            throw new IllegalStateException("Expected " + (to - from) + " hits but got " + hits);
+          }
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - start;
+  }
+
+  static double rate(int count, long nanos) {
+    return count / (nanos / 1000.0);
+  }
+
+  static long usedMemory() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  static String[] generateIds(int count, int length) {
+    Random random = new Random(42);
+    String[] ids = new String[count];
+    char[] chars = new char[length];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < length; j++) {
+        chars[j] = HEX[random.nextInt(16)];
+      }
+      ids[i] = new String(chars);
+    }
+    return ids;
+  }
+
+}
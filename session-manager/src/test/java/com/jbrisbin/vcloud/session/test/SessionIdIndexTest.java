@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2010 by J. Brisbin <jon@jbrisbin.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.jbrisbin.vcloud.session.test;
+
+import com.jbrisbin.vcloud.session.SessionIdIndex;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SessionIdIndex} against a plain <b>HashSet</b> doing the same operations.
+ *
+ * @author J. Brisbin <jon@jbrisbin.com>
+ */
+public class SessionIdIndexTest {
+
+  static final char[] HEX = "0123456789ABCDEF".toCharArray();
+  static final int ID_LENGTH = 32;
+
+  static String randomId(Random rand, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = HEX[rand.nextInt(16)];
+    }
+    return new String(chars);
+  }
+
+  static void assertSameIds(Set<String> expected, SessionIdIndex index) {
+    assertEquals(expected.size(), index.size());
+    String[] ids = index.toArray();
+    assertEquals(expected.size(), ids.length);
+    assertEquals(expected, new HashSet<String>(Arrays.asList(ids)));
+  }
+
+  @Test
+  public void testMatchesHashSet() {
+    Random rand = new Random(42);
+    SessionIdIndex index = new SessionIdIndex(ID_LENGTH);
+    Set<String> oracle = new HashSet<String>();
+    List<String> ids = new ArrayList<String>();
+    // A small pool of IDs so adds and removes keep hitting the same keys and leave removed markers behind
+    for (int i = 0; i < 2000; i++) {
+      ids.add(randomId(rand, ID_LENGTH));
+    }
+    for (int i = 0; i < 200000; i++) {
+      String id = ids.get(rand.nextInt(ids.size()));
+      switch (rand.nextInt(3)) {
+        case 0:
+          assertEquals(oracle.add(id), index.add(id));
+          break;
+        case 1:
+          assertEquals(oracle.remove(id), index.remove(id));
+          break;
+        default:
+          assertEquals(oracle.contains(id), index.contains(id));
+      }
+    }
+    assertSameIds(oracle, index);
+    for (String id : ids) {
+      assertEquals(oracle.contains(id), index.contains(id));
+    }
+  }
+
+  @Test
+  public void testOddLengths() {
+    // Lengths that don't fill the last long, and ones shorter than a single long
+    Random rand = new Random(7);
+    int[] lengths = {1, 15, 16, 17, 31, 33, 48};
+    for (int length : lengths) {
+      SessionIdIndex index = new SessionIdIndex(length);
+      Set<String> oracle = new HashSet<String>();
+      for (int i = 0; i < 500; i++) {
+        String id = randomId(rand, length);
+        assertEquals(oracle.add(id), index.add(id));
+      }
+      assertSameIds(oracle, index);
+    }
+  }
+
+  @Test
+  public void testOverflow() {
+    SessionIdIndex index = new SessionIdIndex(ID_LENGTH);
+    Set<String> oracle = new HashSet<String>();
+    String packed = randomId(new Random(1), ID_LENGTH);
+    String[] others = {
+        packed.substring(1),
+        packed + "0",
+        packed + ".jvm1",
+        packed.toLowerCase().replace('0', 'a').replace('1', 'b'),
+        packed.substring(1) + "G",
+        ""
+    };
+    assertTrue(index.add(packed));
+    oracle.add(packed);
+    for (String id : others) {
+      assertFalse(index.contains(id));
+      assertTrue(index.add(id));
+      assertFalse(index.add(id));
+      assertTrue(index.contains(id));
+      oracle.add(id);
+    }
+    assertSameIds(oracle, index);
+
+    assertTrue(index.remove(others[2]));
+    assertFalse(index.remove(others[2]));
+    assertFalse(index.contains(others[2]));
+    assertTrue(index.contains(packed));
+    oracle.remove(others[2]);
+    assertSameIds(oracle, index);
+  }
+
+  @Test
+  public void testClear() {
+    Random rand = new Random(3);
+    SessionIdIndex index = new SessionIdIndex(ID_LENGTH);
+    List<String> ids = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      String id = randomId(rand, ID_LENGTH);
+      ids.add(id);
+      index.add(id);
+    }
+    index.add("not-a-hex-id");
+    index.clear();
+
+    assertEquals(0, index.size());
+    assertEquals(0, index.toArray().length);
+    assertFalse(index.contains("not-a-hex-id"));
+    for (String id : ids) {
+      assertFalse(index.contains(id));
+    }
+    // Still usable afterwards
+    assertTrue(index.add(ids.get(0)));
+    assertTrue(index.contains(ids.get(0)));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testConcurrentAddRemove() throws InterruptedException {
+    final int threads = 8;
+    final int perThread = 5000;
+    final SessionIdIndex index = new SessionIdIndex(ID_LENGTH);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final List<List<String>> kept = new ArrayList<List<String>>();
+
+    for (int t = 0; t < threads; t++) {
+      final Random rand = new Random(100 + t);
+      final List<String> mine = new ArrayList<String>();
+      kept.add(mine);
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < perThread; i++) {
+              String id = randomId(rand, ID_LENGTH);
+              if (!index.add(id)) {
+                continue;
+              }
+              // Remove every other one so the stripes fill with removed markers while other threads probe them
+              if ((i & 1) == 0) {
+                if (!index.contains(id) || !index.remove(id) || index.contains(id)) {
+                  throw new AssertionError("Lost " + id);
+                }
+              } else {
+                mine.add(id);
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+
+    if (null != failure.get()) {
+      throw new AssertionError(failure.get());
+    }
+    Set<String> oracle = new HashSet<String>();
+    for (List<String> mine : kept) {
+      oracle.addAll(mine);
+    }
+    assertSameIds(oracle, index);
+    for (String id : oracle) {
+      assertTrue(index.contains(id));
+    }
+  }
+
+}